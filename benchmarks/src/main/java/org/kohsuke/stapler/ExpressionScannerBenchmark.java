@@ -0,0 +1,229 @@
+package org.kohsuke.stapler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares {@link ExpressionScanner} with the way the l10n goal used to find the property references:
+ * copying the text into a {@link StringBuilder}, slicing out each <tt>${...}</tt>, and running a regex over it.
+ *
+ * <p>
+ * The Jelly scripts are parsed once up front, and the text that the SAX parser handed over is replayed
+ * to both, chunk by chunk, so that only the finding is measured. Point the <tt>corpus</tt> parameter
+ * to a directory of Jelly scripts, such as the resources of Jenkins core, with <tt>-p corpus=...</tt>.
+ * Without it, a generated set of views is used.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ExpressionScannerBenchmark {
+    @Param("")
+    public String corpus;
+
+    /**
+     * For each script, its runs of text: the chunks of an attribute value, or of the text between two tags.
+     */
+    private final List<List<char[][]>> scripts = new ArrayList<List<char[][]>>();
+
+    @Setup
+    public void setup() throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        SAXParser parser = spf.newSAXParser();
+
+        if (corpus.length()>0) {
+            List<File> files = new ArrayList<File>();
+            findJelly(new File(corpus), files);
+            if (files.isEmpty())
+                throw new IllegalArgumentException("No Jelly scripts in "+corpus);
+            for (File f : files) {
+                InputStream in = new FileInputStream(f);
+                try {
+                    scripts.add(record(parser, new InputSource(in)));
+                } finally {
+                    in.close();
+                }
+            }
+        } else {
+            for (int i=0; i<500; i++)
+                scripts.add(record(parser, new InputSource(new ByteArrayInputStream(generate(i).getBytes("UTF-8")))));
+        }
+    }
+
+    @Benchmark
+    public void scanner(Blackhole bh) {
+        for (List<char[][]> runs : scripts) {
+            final Set<String> properties = new LinkedHashSet<String>();
+            ExpressionScanner scanner = new ExpressionScanner() {
+                protected void onProperty(String name) {
+                    properties.add(name);
+                }
+            };
+            for (char[][] run : runs) {
+                for (char[] chunk : run)
+                    scanner.scan(chunk, 0, chunk.length);
+                if (!scanner.end())
+                    throw new IllegalStateException("Missing '}'");
+            }
+            bh.consume(properties);
+        }
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        for (List<char[][]> runs : scripts) {
+            Set<String> properties = new LinkedHashSet<String>();
+            StringBuilder buf = new StringBuilder();
+            for (char[][] run : runs) {
+                for (char[] chunk : run)
+                    buf.append(chunk, 0, chunk.length);
+                findExpressions(buf, properties);
+            }
+            bh.consume(properties);
+        }
+    }
+
+    /**
+     * The previous implementation, as it was in LocalizerMojo, without the logging.
+     */
+    private static void findExpressions(StringBuilder buf, Set<String> properties) {
+        int idx=-1;
+        do {
+            idx = buf.indexOf("${",idx+1);
+            if(idx<0)   break;
+
+            int end = buf.indexOf("}",idx);
+            if(end==-1)
+                throw new IllegalStateException("Missing '}'");
+
+            String exp = buf.substring(idx+2,end);
+            if(exp.startsWith("%")) {
+                exp = exp.substring(1);
+
+                // if parameters follow, remove them
+                int op = exp.indexOf('(');
+                if(op>=0)   exp=exp.substring(0,op);
+                properties.add(exp);
+            } else {
+                Matcher m = RESOURCE_LITERAL_STRING.matcher(exp);
+                while(m.find()) {
+                    String literal = m.group();
+                    literal = literal.substring(2,literal.length()-1); // unquote and remove '%'
+
+                    // if parameters follow, remove them
+                    int op = literal.indexOf('(');
+                    if(op>=0)   literal=literal.substring(0,op);
+                    properties.add(literal);
+                }
+            }
+        } while(true);
+
+        buf.setLength(0);
+    }
+
+    private static final Pattern RESOURCE_LITERAL_STRING = Pattern.compile("(\"%[^\"]+\")|('%[^']+')");
+
+    /**
+     * Parses a script and records the text the way the SAX parser hands it over to the l10n goal.
+     */
+    private static List<char[][]> record(SAXParser parser, InputSource in) throws Exception {
+        final List<char[][]> runs = new ArrayList<char[][]>();
+        parser.parse(in, new DefaultHandler() {
+            private final List<char[]> text = new ArrayList<char[]>();
+
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                endText();
+                for (int i=0; i<attributes.getLength(); i++)
+                    runs.add(new char[][]{attributes.getValue(i).toCharArray()});
+            }
+
+            public void endElement(String uri, String localName, String qName) {
+                endText();
+            }
+
+            public void characters(char[] ch, int start, int length) {
+                char[] chunk = new char[length];
+                System.arraycopy(ch, start, chunk, 0, length);
+                text.add(chunk);
+            }
+
+            private void endText() {
+                if (!text.isEmpty())
+                    runs.add(text.toArray(new char[text.size()][]));
+                text.clear();
+            }
+        });
+        return runs;
+    }
+
+    private static void findJelly(File dir, List<File> files) throws IOException {
+        File[] children = dir.listFiles();
+        if (children==null)
+            throw new IOException("Not a directory: "+dir);
+        for (File f : children) {
+            if (f.isDirectory())
+                findJelly(f, files);
+            else
+            if (f.getName().endsWith(".jelly"))
+                files.add(f);
+        }
+    }
+
+    /**
+     * Generates a view that looks like the ones in Jenkins: mostly markup, with some expressions.
+     */
+    private static String generate(int n) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("<?jelly escape-by-default='true'?>\n");
+        buf.append("<j:jelly xmlns:j='jelly:core' xmlns:l='/lib/layout' xmlns:f='/lib/form'>\n");
+        buf.append("  <l:layout title='${%Title} ${it.displayName}' permission='${app.ADMINISTER}'>\n");
+        for (int i=0; i<20; i++) {
+            buf.append("    <f:entry title='${%Field").append(i).append("}' field='field").append(i).append("'>\n");
+            buf.append("      <f:textbox default='${instance.field").append(i).append("}'/>\n");
+            buf.append("    </f:entry>\n");
+            buf.append("    <p class='help'>\n");
+            buf.append("      ${%Help(").append(i).append(", it.url)} Some plain text that explains the field in a sentence or two,\n");
+            buf.append("      and then a bit more, as help text tends to go on.\n");
+            buf.append("    </p>\n");
+            buf.append("    <j:if test='${it.enabled and h.hasPermission(it, app.ADMINISTER)}'>\n");
+            buf.append("      <a href='${rootURL}/${it.url}configure' tooltip=\"${h.getMessage('%Configure', it.name)}\">")
+               .append("${it.items.size() > 0 ? it.name : '%Nothing'}</a>\n");
+            buf.append("    </j:if>\n");
+        }
+        buf.append("    <div>").append(n).append("</div>\n");
+        buf.append("  </l:layout>\n");
+        buf.append("</j:jelly>\n");
+        return buf.toString();
+    }
+}
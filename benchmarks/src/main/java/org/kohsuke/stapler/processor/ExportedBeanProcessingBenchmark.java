@@ -0,0 +1,241 @@
+package org.kohsuke.stapler.processor;
+
+import org.kohsuke.stapler.export.Exported;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the annotation processing of a large source set takes, when the {@link Exported}
+ * members are found by walking every member of every class and asking for its annotation, as the
+ * processor used to do, and when they are looked up in the compiler's annotation index.
+ *
+ * <p>
+ * Each invocation runs javac with <tt>-proc:only</tt> over the generated classes, so the parsing and
+ * the attribution are in every number. {@link #noProcessing()} measures just that, to be subtracted
+ * from the others. {@link #staplerProcessor()} runs the processor that the plugin ships, including
+ * the writing of its outputs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3)
+@Measurement(iterations=5)
+@Fork(value=1, jvmArgsAppend="-Xmx2g")
+public class ExportedBeanProcessingBenchmark {
+    /**
+     * Number of top-level classes in the source set. Every tenth one is an exported bean.
+     */
+    @Param("10000")
+    public int classes;
+
+    private File dir;
+    private File out;
+    private List<File> sources;
+
+    @Setup
+    public void generate() throws IOException {
+        dir = File.createTempFile("stapler-benchmark", "");
+        dir.delete();
+        sources = new ArrayList<File>();
+        for (int i=0; i<classes; i++) {
+            File pkg = new File(dir, "src/p"+(i/100));
+            pkg.mkdirs();
+            File f = new File(pkg, "C"+i+".java");
+            write(f, generate(i));
+            sources.add(f);
+        }
+        out = new File(dir, "out");
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() {
+        delete(out);
+        out.mkdirs();
+    }
+
+    @TearDown
+    public void cleanUp() {
+        delete(dir);
+    }
+
+    @Benchmark
+    public int noProcessing() {
+        NoProcessor p = new NoProcessor();
+        compile(p);
+        return p.rounds;
+    }
+
+    @Benchmark
+    public int memberWalk() {
+        MemberWalkProcessor p = new MemberWalkProcessor();
+        compile(p);
+        return p.beans.size();
+    }
+
+    @Benchmark
+    public int annotationIndex() {
+        AnnotationIndexProcessor p = new AnnotationIndexProcessor();
+        compile(p);
+        return p.beans.size();
+    }
+
+    @Benchmark
+    public void staplerProcessor() {
+        compile(new StaplerAnnotationProcessor());
+    }
+
+    private void compile(Processor p) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fm = javac.getStandardFileManager(null, null, null);
+        try {
+            List<String> options = Arrays.asList("-proc:only", "-nowarn", "-d", out.getPath(),
+                    "-classpath", System.getProperty("java.class.path"));
+            JavaCompiler.CompilationTask task = javac.getTask(null, fm, null, options, null, fm.getJavaFileObjectsFromFiles(sources));
+            task.setProcessors(Collections.singletonList(p));
+            if (!task.call())
+                throw new IllegalStateException("Compilation failed");
+        } finally {
+            try {
+                fm.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Does nothing, but gets javac to go through the same rounds as the others.
+     * {@link SupportedAnnotationTypes} isn't inherited, so the subclasses repeat it.
+     */
+    @SupportedAnnotationTypes("org.kohsuke.stapler.export.Exported")
+    static class NoProcessor extends AbstractProcessor {
+        int rounds;
+
+        @Override
+        public SourceVersion getSupportedSourceVersion() {
+            return SourceVersion.latest();
+        }
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            rounds++;
+            return false;
+        }
+    }
+
+    /**
+     * How the beans used to be found: every member of every root class is asked for its annotation.
+     */
+    @SupportedAnnotationTypes("org.kohsuke.stapler.export.Exported")
+    static class MemberWalkProcessor extends NoProcessor {
+        final Set<String> beans = new TreeSet<String>();
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            for (Element root : roundEnv.getRootElements()) {
+                if (root.getKind()==ElementKind.CLASS) {
+                    for (Element e : root.getEnclosedElements()) {
+                        if (e.getAnnotation(Exported.class)!=null)
+                            beans.add(((TypeElement)root).getQualifiedName().toString());
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * How the beans are found now: the annotated members come from the compiler's index.
+     */
+    @SupportedAnnotationTypes("org.kohsuke.stapler.export.Exported")
+    static class AnnotationIndexProcessor extends NoProcessor {
+        final Set<String> beans = new TreeSet<String>();
+
+        @Override
+        public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+            for (Element e : roundEnv.getElementsAnnotatedWith(Exported.class)) {
+                Element owner = e.getEnclosingElement();
+                if (owner instanceof TypeElement)
+                    beans.add(((TypeElement)owner).getQualifiedName().toString());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Generates a class with a handful of members and a nested class. Every tenth one is an exported bean,
+     * and so is its nested class.
+     */
+    private static String generate(int i) {
+        boolean bean = i%10==0;
+        String exported = bean ? "@org.kohsuke.stapler.export.Exported " : "";
+        StringBuilder buf = new StringBuilder();
+        buf.append("package p").append(i/100).append(";\n\n");
+        if (bean)
+            buf.append("@org.kohsuke.stapler.export.ExportedBean\n");
+        buf.append("public class C").append(i).append(" {\n");
+        for (int j=0; j<5; j++) {
+            buf.append("    private int field").append(j).append(";\n");
+            buf.append("    /** The value of field ").append(j).append(". */\n");
+            buf.append("    ").append(j<3 ? exported : "").append("public int getField").append(j).append("() { return field").append(j).append("; }\n");
+            buf.append("    public void setField").append(j).append("(int v) { field").append(j).append(" = v; }\n");
+        }
+        buf.append("    public static class Nested {\n");
+        buf.append("        ").append(exported).append("public String name;\n");
+        buf.append("        public String toString() { return name; }\n");
+        buf.append("    }\n");
+        buf.append("}\n");
+        return buf.toString();
+    }
+
+    private static void write(File f, String s) throws IOException {
+        OutputStream o = new FileOutputStream(f);
+        try {
+            o.write(s.getBytes("UTF-8"));
+        } finally {
+            o.close();
+        }
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children!=null)
+            for (File c : children)
+                delete(c);
+        f.delete();
+    }
+}
@@ -33,22 +33,21 @@ import org.codehaus.plexus.compiler.util.scan.mapping.SingleTargetSourceMapping;
 import org.codehaus.plexus.compiler.util.scan.mapping.SourceMapping;
 import org.codehaus.plexus.compiler.util.scan.mapping.SuffixMapping;
 import org.codehaus.plexus.util.StringUtils;
+import org.kohsuke.stapler.processor.ExportedBeanAnnotationProcessor;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 
 /**
- * TODO: At least one step could be optimized, currently the plugin will do two
- * scans of all the source code if the compiler has to have the entire set of
- * sources. This is currently the case for at least the C# compiler and most
- * likely all the other .NET compilers too.
- *
  * @author others
  * @author <a href="mailto:trygvis@inamo.no">Trygve Laugst&oslash;l</a>
  * @version $Id: AbstractCompilerMojo.java 383 2007-08-19 17:12:03Z kohsuke $
@@ -141,7 +140,8 @@ public abstract class AbstractCompilerMojo
 
     /**
      * Allows running the compiler in a separate process.
-     * If "false" it uses the built in compiler, while if "true" it will use an executable.
+     * If "false" it uses the built in compiler, while if "true" it will use a worker JVM
+     * that is reused by the subsequent compilations in the same build.
      *
      * @parameter default-value="false"
      */
@@ -164,7 +164,8 @@ public abstract class AbstractCompilerMojo
     private String maxmem;
 
     /**
-     * Sets the executable of the compiler to use when fork is true.
+     * Sets the executable of the compiler to use when fork is true. The worker JVM
+     * is started with the <tt>java</tt> launcher next to it.
      *
      * @parameter expression="${maven.compiler.executable}"
      */
@@ -204,6 +205,93 @@ public abstract class AbstractCompilerMojo
      */
     private String outputFileName;
 
+    /**
+     * Set to false to stop recording the compiled sources in a persistent index.
+     * The index lets subsequent builds find modified sources without scanning
+     * all the source roots.
+     *
+     * @parameter expression="${stapler.incrementalIndex}" default-value="true"
+     */
+    private boolean incrementalIndex;
+
+    /**
+     * Set to true to run javac in a long-lived background JVM that stays warm between
+     * compilations and builds, instead of in the Maven JVM.
+     *
+     * @parameter expression="${stapler.compileServer}" default-value="false"
+     */
+    private boolean compileServer;
+
+    /**
+     * Minutes that the compile server waits for the next compilation before it exits.
+     *
+     * @parameter expression="${stapler.compileServerIdleTimeout}" default-value="60"
+     */
+    private int compileServerIdleTimeout;
+
+    /**
+     * Number of threads to compile with. When more than one, the stale sources are split
+     * into groups of packages that don't depend on each other, and the groups are compiled
+     * concurrently. Only applies when compiling in the Maven JVM.
+     *
+     * @parameter expression="${stapler.compileThreads}" default-value="1"
+     */
+    private int compileThreads;
+
+    /**
+     * Maximum number of compiler errors to report. 0 reports all of them.
+     *
+     * @parameter expression="${stapler.maxErrors}" default-value="0"
+     */
+    private int maxErrors;
+
+    /**
+     * Maximum number of compiler warnings to report. 0 reports all of them.
+     *
+     * @parameter expression="${stapler.maxWarnings}" default-value="0"
+     */
+    private int maxWarnings;
+
+    /**
+     * Set to true to stop the compilation on the first error, instead of reporting all of them.
+     *
+     * @parameter expression="${stapler.failFast}" default-value="false"
+     */
+    private boolean failFast;
+
+    /**
+     * Set to true to generate a class for each exported bean that reads its exported properties
+     * without reflection. The generated classes are listed in <tt>META-INF/exposed.stapler-exporters</tt>.
+     *
+     * @parameter expression="${stapler.generateExporters}" default-value="false"
+     */
+    private boolean generateExporters;
+
+    /**
+     * Set to true to write the timings of the compilation, such as the source scanning, the javac phases,
+     * and the annotation processing rounds, along with the throughput, to a JSON report in the build directory.
+     *
+     * @parameter expression="${stapler.compileReport}" default-value="false"
+     */
+    private boolean compileReport;
+
+    /**
+     * Set to true to look up the compiler outputs in the build cache before compiling,
+     * and to record them there afterward. The cache is keyed by the contents of the sources
+     * and the classpath, the compiler options, and the version of this plugin, so builds
+     * of the same commit can share the outputs. Only clean builds record their outputs.
+     *
+     * @parameter expression="${stapler.buildCache}" default-value="false"
+     */
+    private boolean buildCache;
+
+    /**
+     * The directory of the build cache.
+     *
+     * @parameter expression="${stapler.buildCacheDirectory}" default-value="${user.home}/.stapler/build-cache"
+     */
+    private File buildCacheDirectory;
+
     // ----------------------------------------------------------------------
     // Read-only parameters
     // ----------------------------------------------------------------------
@@ -233,9 +321,27 @@ public abstract class AbstractCompilerMojo
      */
     private CompilerManager compilerManager;
 
-    protected abstract SourceInclusionScanner getSourceInclusionScanner( int staleMillis );
+    /**
+     * The stale sources found by the last scan.
+     */
+    private Set staleSources = Collections.EMPTY_SET;
 
-    protected abstract SourceInclusionScanner getSourceInclusionScanner( String inputFileEnding );
+    /**
+     * All the sources found by the last scan, stale or not.
+     */
+    private Set allSources = Collections.EMPTY_SET;
+
+    protected abstract RecordingStaleSourceScanner getSourceInclusionScanner( int staleMillis );
+
+    /**
+     * The patterns of the sources to include, which decide what ends up in the source index.
+     */
+    protected abstract Set getSourceIncludes();
+
+    /**
+     * The patterns of the sources to exclude.
+     */
+    protected abstract Set getSourceExcludes();
 
     protected abstract List getClasspathElements();
 
@@ -288,7 +394,7 @@ public abstract class AbstractCompilerMojo
         // Create the compiler configuration
         // ----------------------------------------------------------------------
 
-        CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
+        AptCompilerConfiguration compilerConfiguration = new AptCompilerConfiguration();
 
         compilerConfiguration.setOutputLocation( getOutputDirectory().getAbsolutePath() );
 
@@ -336,6 +442,12 @@ public abstract class AbstractCompilerMojo
             compilerConfiguration.setCustomCompilerArguments( cplrArgsCopy );
         }
 
+        if ( generateExporters )
+        {
+            compilerConfiguration.addCompilerCustomArgument(
+                "-A" + ExportedBeanAnnotationProcessor.GENERATE_EXPORTERS_OPTION + "=true", null );
+        }
+
         compilerConfiguration.setFork( fork );
 
         if( fork )
@@ -379,29 +491,69 @@ public abstract class AbstractCompilerMojo
 
         compilerConfiguration.setOutputFileName( outputFileName );
 
+        compilerConfiguration.setCompileServer( compileServer );
+
+        compilerConfiguration.setCompileServerIdleTimeout( compileServerIdleTimeout * 60L * 1000 );
+
+        compilerConfiguration.setCompileThreads( compileThreads );
+
+        compilerConfiguration.setMaxErrors( maxErrors );
+
+        compilerConfiguration.setMaxWarnings( maxWarnings );
+
+        compilerConfiguration.setFailFast( failFast );
+
+        CompileMetrics metrics = compileReport ? new CompileMetrics() : null;
+
+        compilerConfiguration.setMetrics( metrics );
+
         // TODO: have an option to always compile (without need to clean)
         Set staleSources;
 
         boolean canUpdateTarget;
 
+        long scanStart = System.currentTimeMillis();
+
+        SourceIndex sourceIndex = loadSourceIndex( compiler, compileSourceRoots );
+
         try
         {
-            staleSources =
-                computeStaleSources( compilerConfiguration, compiler, getSourceInclusionScanner( staleMillis ) );
+            staleSources = findModifiedSources( sourceIndex, compiler, compilerConfiguration, compileSourceRoots );
+
+            if ( staleSources != null )
+            {
+                allSources = sourceIndex.getSourceFiles();
+            }
+            else
+            {
+                // a single scan finds both the stale sources and all the sources
+                RecordingStaleSourceScanner scanner = getSourceInclusionScanner( staleMillis );
+
+                staleSources = computeStaleSources( compilerConfiguration, compiler, scanner );
+
+                allSources = scanner.getAllSources();
+
+                if ( sourceIndex != null )
+                {
+                    updateSourceIndex( sourceIndex, allSources, compileSourceRoots );
+                }
+            }
+
+            if ( staleSources.isEmpty() )
+            {
+                // nothing changed, but a source may have been deleted, leaving the sources
+                // that depended on it broken without anyone noticing
+                staleSources = findDependentsOfDeletedSources( compileSourceRoots );
+            }
+
+            this.staleSources = staleSources;
 
             canUpdateTarget = compiler.canUpdateTarget( compilerConfiguration );
 
             if ( compiler.getCompilerOutputStyle().equals( CompilerOutputStyle.ONE_OUTPUT_FILE_FOR_ALL_INPUT_FILES ) &&
                 !canUpdateTarget )
             {
-                getLog().info( "RESCANNING!" );
-                // TODO: This second scan for source files is sub-optimal
-                String inputFileEnding = compiler.getInputFileEnding( compilerConfiguration );
-
-                Set sources = computeStaleSources( compilerConfiguration, compiler,
-                                                   getSourceInclusionScanner( inputFileEnding ) );
-
-                compilerConfiguration.setSourceFiles( sources );
+                compilerConfiguration.setSourceFiles( allSources );
             }
             else
             {
@@ -413,13 +565,100 @@ public abstract class AbstractCompilerMojo
             throw new MojoExecutionException( "Error while computing stale sources.", e );
         }
 
+        if ( metrics != null )
+        {
+            metrics.setScanTime( System.currentTimeMillis() - scanStart );
+
+            metrics.setSourceFiles( allSources.size(), staleSources.size() );
+        }
+
         if ( staleSources.isEmpty() )
         {
             getLog().info( "Nothing to compile - all classes are up to date" );
 
+            saveSourceIndex( sourceIndex );
+
+            writeCompileReport( metrics );
+
             return;
         }
 
+        BuildCache cache = null;
+
+        String cacheKey = null;
+
+        if ( buildCache && sourceIndex != null )
+        {
+            cache = new BuildCache( buildCacheDirectory );
+
+            try
+            {
+                cacheKey = cache.computeKey( allSources, compileSourceRoots, getClasspathElements(),
+                                             AptCompiler.buildCompilerOptions( compilerConfiguration, new String[0] ),
+                                             getOutputDirectory() );
+            }
+            catch ( IOException e )
+            {
+                getLog().warn( "Failed to look up the build cache", e );
+            }
+        }
+
+        if ( cacheKey != null )
+        {
+            try
+            {
+                if ( cache.restore( cacheKey, getOutputDirectory() ) )
+                {
+                    getLog().info( "Restored the compiled classes from the build cache" );
+
+                    // the dependency graph doesn't know about the restored classes,
+                    // and neither do the sources of the exposed beans
+                    DependencyGraph.getFile( buildDirectory, getOutputDirectory() ).delete();
+                    ExportedBeanAnnotationProcessor.getProvenanceFile(
+                        SourceIndex.getStateDirectory( buildDirectory, getOutputDirectory() ) ).delete();
+
+                    saveSourceIndex( sourceIndex );
+
+                    if ( metrics != null )
+                    {
+                        metrics.setCacheHit( true );
+
+                        writeCompileReport( metrics );
+                    }
+
+                    return;
+                }
+            }
+            catch ( IOException e )
+            {
+                // the output directory may have been left with only some of the classes,
+                // so they can't be trusted, and neither can the source index that describes them
+                getLog().warn( "Failed to restore the compiled classes from the build cache, recompiling everything", e );
+
+                staleSources = allSources;
+
+                this.staleSources = staleSources;
+
+                compilerConfiguration.setSourceFiles( staleSources );
+
+                if ( metrics != null )
+                {
+                    metrics.setSourceFiles( allSources.size(), staleSources.size() );
+                }
+
+                sourceIndex = null;
+
+                cacheKey = null;
+            }
+        }
+
+        // the outputs can only be recorded if nothing was there to begin with, or else the classes
+        // of the sources deleted since the last clean build would be recorded along with them
+        if ( cacheKey != null && BuildCache.hasOutputs( getOutputDirectory() ) )
+        {
+            cacheKey = null;
+        }
+
         // ----------------------------------------------------------------------
         // Dump configuration
         // ----------------------------------------------------------------------
@@ -481,6 +720,8 @@ public abstract class AbstractCompilerMojo
 
         List messages;
 
+        long compileStart = System.currentTimeMillis();
+
         try
         {
             messages = compiler.compile( compilerConfiguration );
@@ -491,7 +732,17 @@ public abstract class AbstractCompilerMojo
             throw new MojoExecutionException( "Fatal error compiling", e );
         }
 
-        boolean compilationError = false;
+        if ( metrics != null )
+        {
+            metrics.setCompileTime( System.currentTimeMillis() - compileStart );
+
+            // file systems may only keep the timestamps to the second
+            metrics.countOutputs( getOutputDirectory(), compileStart / 1000 * 1000 );
+
+            writeCompileReport( metrics );
+        }
+
+        int errorCount = 0;
 
         for ( Iterator i = messages.iterator(); i.hasNext(); )
         {
@@ -499,22 +750,294 @@ public abstract class AbstractCompilerMojo
 
             if ( message.isError() )
             {
-                compilationError = true;
+                errorCount++;
             }
         }
 
-        if ( compilationError )
+        if ( errorCount > 0 )
         {
+            if ( compiler instanceof AptCompiler )
+            {
+                // AptCompiler has already logged them as they were found, so only summarize them here
+                String summary = errorCount + ( errorCount == 1 ? " error" : " errors" ) + "; see the compiler output above";
+
+                throw new CompilationFailureException( Collections.singletonList( new CompilerError( summary, true ) ) );
+            }
+
             throw new CompilationFailureException( messages );
         }
         else
         {
-            for ( Iterator i = messages.iterator(); i.hasNext(); )
+            saveSourceIndex( sourceIndex );
+
+            if ( cacheKey != null )
             {
-                CompilerError message = (CompilerError) i.next();
+                try
+                {
+                    cache.store( cacheKey, getOutputDirectory() );
+                }
+                catch ( IOException e )
+                {
+                    getLog().warn( "Failed to record the compiled classes in the build cache", e );
+                }
+            }
 
-                getLog().warn( message.toString() );
+            if ( !( compiler instanceof AptCompiler ) )
+            {
+                // AptCompiler has already logged them as they were found
+                for ( Iterator i = messages.iterator(); i.hasNext(); )
+                {
+                    CompilerError message = (CompilerError) i.next();
+
+                    getLog().warn( message.toString() );
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the sources that were found to be stale by the last scan.
+     */
+    protected Set getStaleSources()
+    {
+        return staleSources;
+    }
+
+    /**
+     * Gets all the sources that were found by the last scan, stale or not.
+     */
+    protected Set getAllSources()
+    {
+        return allSources;
+    }
+
+    /**
+     * Loads the persistent index of the compiled sources.
+     *
+     * @return null if the index is not used for this compilation.
+     */
+    private SourceIndex loadSourceIndex( Compiler compiler, List compileSourceRoots )
+    {
+        if ( !incrementalIndex ||
+            compiler.getCompilerOutputStyle() != CompilerOutputStyle.ONE_OUTPUT_FILE_PER_INPUT_FILE )
+        {
+            return null;
+        }
+
+        File indexFile = new File( SourceIndex.getStateDirectory( buildDirectory, getOutputDirectory() ), "sources.idx" );
+
+        // the includes and excludes decide which sources are in the index
+        String fingerprint = SourceIndex.fingerprint( compileSourceRoots, new Integer( staleMillis ),
+                                                      new TreeSet( getSourceIncludes() ),
+                                                      new TreeSet( getSourceExcludes() ) );
+
+        try
+        {
+            if ( !getOutputDirectory().isDirectory() )
+            {
+                // the output was wiped out, so the index doesn't reflect what's compiled
+                indexFile.delete();
+            }
+            return SourceIndex.load( indexFile, fingerprint );
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Failed to read the source index " + indexFile + ". Scanning all sources.", e );
+
+            return null;
+        }
+    }
+
+    /**
+     * Uses the dependency graph of the last compilation to find the sources that depend on
+     * the sources that are gone since then.
+     *
+     * @return never null.
+     */
+    private Set findDependentsOfDeletedSources( List compileSourceRoots )
+    {
+        Set dependents = new HashSet();
+
+        File file = DependencyGraph.getFile( buildDirectory, getOutputDirectory() );
+
+        if ( buildDirectory == null || !file.exists() )
+        {
+            return dependents;
+        }
+
+        List roots = new ArrayList();
+        for ( Iterator i = compileSourceRoots.iterator(); i.hasNext(); )
+        {
+            roots.add( new File( (String) i.next() ) );
+        }
+
+        try
+        {
+            DependencyGraph graph = DependencyGraph.load( file );
+
+            for ( Iterator i = graph.findDependents( Collections.EMPTY_LIST, roots ).iterator(); i.hasNext(); )
+            {
+                File source = DependencyGraph.resolve( (String) i.next(), roots );
+
+                if ( source != null )
+                {
+                    dependents.add( source );
+                }
+            }
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Failed to read the dependency graph " + file, e );
+        }
+
+        if ( !dependents.isEmpty() )
+        {
+            getLog().info( "Recompiling " + dependents.size() + " source file(s) that depended on deleted sources" );
+        }
+
+        return dependents;
+    }
+
+    /**
+     * Uses the index to find the sources that changed since the last compilation.
+     * Sources whose class files are missing are considered changed, too, just like
+     * the stale source scan does.
+     *
+     * @return null if the index can't tell, and all the source roots need to be scanned.
+     */
+    private Set findModifiedSources( SourceIndex sourceIndex, Compiler compiler,
+                                     CompilerConfiguration compilerConfiguration, List compileSourceRoots )
+        throws CompilerException
+    {
+        if ( sourceIndex == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            Set modified = sourceIndex.findModifiedSources();
+
+            if ( modified != null )
+            {
+                SourceMapping mapping = new SuffixMapping( compiler.getInputFileEnding( compilerConfiguration ),
+                                                           compiler.getOutputFileEnding( compilerConfiguration ) );
+
+                for ( Iterator i = sourceIndex.getSourceFiles().iterator(); i.hasNext(); )
+                {
+                    File source = (File) i.next();
+
+                    if ( modified.contains( source ) )
+                    {
+                        continue;
+                    }
+
+                    String path = getRelativePath( source, compileSourceRoots );
+
+                    if ( path == null )
+                    {
+                        return null;
+                    }
+
+                    for ( Iterator j = mapping.getTargetFiles( getOutputDirectory(), path ).iterator(); j.hasNext(); )
+                    {
+                        if ( !( (File) j.next() ).exists() )
+                        {
+                            modified.add( source );
+                        }
+                    }
+                }
+
+                getLog().debug( "Found " + modified.size() + " modified source(s) from the source index" );
+            }
+            return modified;
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Failed to check the source index. Scanning all sources.", e );
+
+            return null;
+        }
+        catch ( InclusionScanException e )
+        {
+            getLog().warn( "Failed to check the source index. Scanning all sources.", e );
+
+            return null;
+        }
+    }
+
+    /**
+     * Gets the path of the source relative to the source root it's in.
+     *
+     * @return null if the source isn't in any of the source roots.
+     */
+    private static String getRelativePath( File source, List compileSourceRoots )
+    {
+        String path = source.getAbsolutePath();
+
+        for ( Iterator i = compileSourceRoots.iterator(); i.hasNext(); )
+        {
+            String root = new File( (String) i.next() ).getAbsolutePath();
+
+            if ( !root.endsWith( File.separator ) )
+            {
+                root += File.separator;
             }
+
+            if ( path.startsWith( root ) )
+            {
+                return path.substring( root.length() );
+            }
+        }
+        return null;
+    }
+
+    private void updateSourceIndex( SourceIndex sourceIndex, Set sources, List compileSourceRoots )
+        throws MojoExecutionException
+    {
+        try
+        {
+            sourceIndex.update( sources, compileSourceRoots );
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Failed to update the source index", e );
+        }
+    }
+
+    private void saveSourceIndex( SourceIndex sourceIndex )
+    {
+        if ( sourceIndex == null )
+        {
+            return;
+        }
+
+        try
+        {
+            sourceIndex.save();
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Failed to save the source index", e );
+        }
+    }
+
+    private void writeCompileReport( CompileMetrics metrics )
+    {
+        if ( metrics == null )
+        {
+            return;
+        }
+
+        File report = new File( buildDirectory, "stapler-compile-" + getOutputDirectory().getName() + ".json" );
+
+        try
+        {
+            metrics.write( report, getOutputDirectory() );
+        }
+        catch ( IOException e )
+        {
+            getLog().warn( "Failed to write the compile report " + report, e );
         }
     }
 
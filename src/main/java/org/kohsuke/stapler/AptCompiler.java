@@ -25,19 +25,22 @@ package org.kohsuke.stapler;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import javax.annotation.processing.AbstractProcessor;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.tools.Diagnostic;
-import javax.tools.DiagnosticCollector;
+import javax.tools.DiagnosticListener;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
-import javax.tools.StandardJavaFileManager;
 import javax.tools.ToolProvider;
 import org.codehaus.plexus.compiler.CompilerConfiguration;
 import org.codehaus.plexus.compiler.CompilerException;
@@ -74,38 +77,153 @@ public class AptCompiler extends JavacCompiler {
             return Collections.EMPTY_LIST;
         }
 
+        List<File> sourceRoots = getSourceRoots(config);
+        DependencyGraph dependencies = loadDependencyGraph(config);
+        if (dependencies!=null)
+            sourceFiles = addDependents(dependencies, sourceFiles, sourceRoots);
+
         getLogger().info( "Compiling " + sourceFiles.length + " " +
                           "source file" + ( sourceFiles.length == 1 ? "" : "s" ) +
                           " to " + destinationDir.getAbsolutePath() );
 
-//        if (config.isFork()) {
-//            // forking a compiler requires classpath set up and passing AnnotationProcessorFactory.
-//            config.addClasspathEntry(whichJar(AnnotationProcessorFactoryImpl.class));
-//            config.addCompilerCustomArgument("-factory",AnnotationProcessorFactoryImpl.class.getName());
-//        }
-
         // this is where the META-INF/services get generated.
         config.addCompilerCustomArgument("-s",new File(config.getOutputLocation()).getAbsolutePath());
-//        String[] args = buildCompilerArguments( config, sourceFiles );
+        if (config.getBuildDirectory()!=null)
+            config.addCompilerCustomArgument("-A"+ExportedBeanAnnotationProcessor.STATE_DIRECTORY_OPTION+"="
+                +SourceIndex.getStateDirectory(config.getBuildDirectory(), destinationDir).getAbsolutePath(), null);
         List<String> options = buildCompilerOptions(config, sourceFiles);
 
-//        if (config.isFork()) {
-//            String executable = config.getExecutable();
-//            if (StringUtils.isEmpty(executable)) {
-//                File apt = new File(new File(System.getProperty("java.home")),"bin/apt"); // Mac puts $JAVA_HOME to JDK
-//                if (!apt.exists())
-//                    // on other platforms $JAVA_HOME is JRE in JDK.
-//                    apt = new File(new File(System.getProperty("java.home")),"../bin/apt");
-//                executable = apt.getAbsolutePath();
-//            }
-//            return compileOutOfProcess(config, executable, args);
-//        } else {
-
-            return compileInProcess(options, Arrays.asList(sourceFiles), destinationDir.getAbsolutePath());
-//        }
+        StreamingDiagnosticListener diagnostics = createDiagnosticListener(config);
+        CompileMetrics metrics = config instanceof AptCompilerConfiguration ? ((AptCompilerConfiguration)config).getMetrics() : null;
+        long start = System.currentTimeMillis();
+        boolean success;
+        int threads = config instanceof AptCompilerConfiguration ? ((AptCompilerConfiguration)config).getCompileThreads() : 1;
+        if (config.isFork())
+            success = compileForked(config, options, Arrays.asList(sourceFiles), diagnostics);
+        else
+        if (config instanceof AptCompilerConfiguration && ((AptCompilerConfiguration)config).isCompileServer())
+            success = compileOnServer((AptCompilerConfiguration)config, options, Arrays.asList(sourceFiles), diagnostics);
+        else
+        if (threads>1 && sourceFiles.length>1)
+            success = compilePartitioned(options, SourcePartitioner.partition(sourceFiles, sourceRoots, dependencies, threads),
+                config.getSourceLocations(), diagnostics, metrics);
+        else
+            success = compileInProcess(options, Arrays.asList(sourceFiles), diagnostics, metrics);
+
+        List messages = diagnostics.getMessages();
+        if (!success && !diagnostics.hasErrors()) {
+            throw new CompilerException("APT failed");
+        }
+        if (success && dependencies!=null)
+            recordDependencies(dependencies, sourceFiles, sourceRoots, destinationDir, start);
+        return messages;
     }
 
-    private static List<String> buildCompilerOptions(CompilerConfiguration config, String[] sourceFiles) {
+    private StreamingDiagnosticListener createDiagnosticListener(CompilerConfiguration config) {
+        if (config instanceof AptCompilerConfiguration) {
+            AptCompilerConfiguration c = (AptCompilerConfiguration) config;
+            return new StreamingDiagnosticListener(getLogger(), c.getMaxErrors(), c.getMaxWarnings(), c.isFailFast());
+        }
+        return new StreamingDiagnosticListener(getLogger(), 0, 0, false);
+    }
+
+    private static List<File> getSourceRoots(CompilerConfiguration config) {
+        List<File> roots = new ArrayList<File>();
+        if (config.getSourceLocations()!=null)
+            for (Object root : config.getSourceLocations())
+                roots.add(new File((String)root));
+        return roots;
+    }
+
+    /**
+     * Loads the dependency graph recorded by the previous compilation.
+     *
+     * @return null if the build directory is unknown, in which case dependencies are not tracked.
+     */
+    private DependencyGraph loadDependencyGraph(CompilerConfiguration config) {
+        if (config.getBuildDirectory()==null)
+            return null;
+        File f = DependencyGraph.getFile(config.getBuildDirectory(), new File(config.getOutputLocation()));
+        try {
+            return DependencyGraph.load(f);
+        } catch (IOException e) {
+            getLogger().warn("Failed to read the dependency graph "+f, e);
+            return null;
+        }
+    }
+
+    /**
+     * Adds the sources that depend on the given sources, so that they get recompiled as well.
+     */
+    private String[] addDependents(DependencyGraph dependencies, String[] sourceFiles, List<File> sourceRoots) {
+        if (dependencies.isEmpty())
+            return sourceFiles;
+
+        List<String> modified = new ArrayList<String>();
+        for (String f : sourceFiles) {
+            String path = DependencyGraph.relativize(new File(f), sourceRoots);
+            if (path!=null)
+                modified.add(path);
+        }
+
+        List<String> all = new ArrayList<String>(Arrays.asList(sourceFiles));
+        for (String path : dependencies.findDependents(modified, sourceRoots)) {
+            File f = DependencyGraph.resolve(path, sourceRoots);
+            if (f!=null)
+                all.add(f.getAbsolutePath());
+        }
+
+        if (all.size()>sourceFiles.length)
+            getLogger().info("Recompiling " + (all.size()-sourceFiles.length) + " dependent source file(s)");
+        return all.toArray(new String[all.size()]);
+    }
+
+    /**
+     * Updates the dependency graph with the class files produced by the compilation.
+     *
+     * @param start
+     *      when the compilation started. Class files newer than this are the ones produced by it.
+     */
+    private void recordDependencies(DependencyGraph dependencies, String[] sourceFiles, List<File> sourceRoots, File destinationDir, long start) {
+        List<String> compiled = new ArrayList<String>();
+        for (String f : sourceFiles) {
+            String path = DependencyGraph.relativize(new File(f), sourceRoots);
+            if (path!=null)
+                compiled.add(path);
+        }
+
+        // the first time around, pick up everything, since a graph that only knows
+        // some of the classes would miss dependents
+        List<File> classFiles = new ArrayList<File>();
+        listClassFiles(destinationDir, dependencies.isEmpty() ? 0 : start-TIMESTAMP_GRANULARITY, classFiles);
+
+        try {
+            dependencies.update(compiled, classFiles, sourceRoots);
+            dependencies.save();
+        } catch (IOException e) {
+            getLogger().warn("Failed to record the dependencies. Dependent sources will not be recompiled", e);
+            dependencies.delete();
+        }
+    }
+
+    private static void listClassFiles(File dir, long since, List<File> result) {
+        File[] children = dir.listFiles();
+        if (children==null)     return;
+        for (File child : children) {
+            if (child.isDirectory())
+                listClassFiles(child, since, result);
+            else
+            if (child.getName().endsWith(".class") && child.lastModified()>=since)
+                result.add(child);
+        }
+    }
+
+    /**
+     * Some file systems only keep timestamps to the second, or even two seconds.
+     */
+    private static final long TIMESTAMP_GRANULARITY = 2000;
+
+    /*package*/ static List<String> buildCompilerOptions(CompilerConfiguration config, String[] sourceFiles) {
         List<String> args = new ArrayList<String>();
         File destinationDir = new File(config.getOutputLocation());
         args.add("-d");
@@ -170,148 +288,168 @@ public class AptCompiler extends JavacCompiler {
     }
 
 
-//    private String whichJar(Class c) throws CompilerException {
-//        try {
-//            String url = c.getClassLoader().getResource(c.getName().replace('.', '/') + ".class").toExternalForm();
-//            if (url.startsWith("jar:")) {
-//                url = url.substring(4);
-//                url = url.substring(0,url.indexOf('!'));
-//                return new URL(url).getPath();
-//            }
-//            throw new CompilerException("Failed to infer classpath for "+c);
-//        } catch (MalformedURLException e) {
-//            throw new CompilerException("Failed to infer classpath for "+c,e);
-//        }
-//    }
-
     /**
      * Compile the java sources in the current JVM, without calling an external executable,
-     * using <code>com.sun.tools.javac.Main</code> class
+     * using the <tt>javax.tools</tt> API.
      *
      * @param options arguments for the compiler as they would be used in the command line javac
-     * @return List of CompilerError objects with the errors encountered.
+     * @param diagnostics receives the errors and the warnings as they are found.
+     * @param metrics receives the time spent in the javac phases. Can be null.
+     * @return true if the compilation was successful.
      * @throws CompilerException
      */
-    protected List compileInProcess(List<String> options, List<String> sourceFiles, String destinationAbsolutePath)
+    protected boolean compileInProcess(List<String> options, List<String> sourceFiles,
+                                       StreamingDiagnosticListener diagnostics, CompileMetrics metrics)
         throws CompilerException {
-//        com.sun.tools.apt.Main aptTool = new com.sun.tools.apt.Main();
-//        int r = aptTool.process(new AnnotationProcessorFactoryImpl(),
-//            new PrintWriter(System.out,true),args);
-        List<String> compilationErrors = new ArrayList<String>();
         JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
-        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, null, null);
-        Iterable<? extends JavaFileObject> compilationUnits = fileManager.
-            getJavaFileObjectsFromStrings(sourceFiles);
-        JavaCompiler.CompilationTask task = compiler.getTask(new PrintWriter(System.out, true), fileManager, null,
-            options, null, compilationUnits);
-        LinkedList<AbstractProcessor> processors = new LinkedList<AbstractProcessor>();
-        ExportedBeanAnnotationProcessor processor = new ExportedBeanAnnotationProcessor();
-        processor.setDestinationPath(destinationAbsolutePath);
-        processors.add(processor);
-        task.setProcessors(processors);
-        Boolean success = task.call();
-        for (Diagnostic diagnostic : diagnostics.getDiagnostics()) {
-            String error = String.format("Error in source %s on line %d position %d kind %s message %s",
-                diagnostic.getSource(), diagnostic.getLineNumber(), diagnostic.getPosition(), diagnostic.getKind(),
-                diagnostic.getMessage(null));
-            System.out.println(error);
-            compilationErrors.add(error);
-        }
         try {
-            fileManager.close();
-        } catch (IOException ignore) {
-        }
-        if (!success) {
-            throw new CompilerException("APT failed");
+            return JavacRunner.run(compiler, diagnostics, new PrintWriter(System.out, true),
+                options, sourceFiles, metrics);
+        } catch (IOException e) {
+            throw new CompilerException("Failed to open the classpath", e);
         }
-        return compilationErrors;
     }
 
-/*
-    protected List compileOutOfProcess(CompilerConfiguration config, String executable, String[] args)
-            throws CompilerException {
-        Commandline cli = new Commandline();
-
-        cli.setWorkingDirectory(config.getWorkingDirectory().getAbsolutePath());
+    /**
+     * Compiles the partitions of the java sources concurrently in the current JVM, one thread per partition.
+     *
+     * <p>
+     * Each partition sees the other sources through the source path, but only generates the class files
+     * of its own sources. The compiler output and the diagnostics are reported in the partition order
+     * once all of them are done.
+     */
+    protected boolean compilePartitioned(List<String> options, List<List<String>> partitions, List sourceLocations,
+                                         final StreamingDiagnosticListener diagnostics, final CompileMetrics metrics)
+        throws CompilerException {
+        if (partitions.size()==1) {
+            return compileInProcess(options, partitions.get(0), diagnostics, metrics);
+        }
+        getLogger().info("Compiling in " + partitions.size() + " partitions");
 
-        cli.setExecutable(executable);
+        final List<String> partitionOptions = new ArrayList<String>(options);
+        partitionOptions.add("-sourcepath");
+        partitionOptions.add(getPathString(sourceLocations));
+        partitionOptions.add("-implicit:none");
 
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        ExecutorService executor = Executors.newFixedThreadPool(partitions.size());
         try {
-            File argumentsFile = createFileWithArguments(args);
-            cli.addArguments(new String[]{"@" + argumentsFile.getCanonicalPath().replace(File.separatorChar, '/')});
-
-            if (!StringUtils.isEmpty(config.getMaxmem())) {
-                cli.addArguments(new String[]{"-J-Xmx" + config.getMaxmem()});
+            List<Future<Partition>> futures = new ArrayList<Future<Partition>>();
+            for (final List<String> sourceFiles : partitions) {
+                futures.add(executor.submit(new Callable<Partition>() {
+                    public Partition call() throws IOException {
+                        final Partition p = new Partition();
+                        DiagnosticListener<JavaFileObject> listener = new DiagnosticListener<JavaFileObject>() {
+                            public void report(Diagnostic<? extends JavaFileObject> d) {
+                                p.diagnostics.add(d);
+                                if (diagnostics.isFailFast() && d.getKind()==Diagnostic.Kind.ERROR)
+                                    throw new JavacRunner.CompilationAborted();
+                            }
+                        };
+                        p.success = JavacRunner.run(compiler, listener, new PrintWriter(p.output, true),
+                            partitionOptions, sourceFiles, metrics);
+                        return p;
+                    }
+                }));
             }
 
-            if (!StringUtils.isEmpty(config.getMeminitial())) {
-                cli.addArguments(new String[]{"-J-Xms" + config.getMeminitial()});
+            boolean success = true;
+            for (Future<Partition> f : futures) {
+                Partition p = f.get();
+                System.out.print(p.output);
+                for (Diagnostic<? extends JavaFileObject> d : p.diagnostics) {
+                    diagnostics.report(d.getKind(), JavacRunner.getPath(d.getSource()), d.getLineNumber(), d.getColumnNumber(), d.getMessage(null));
+                }
+                success &= p.success;
             }
+            return success;
+        } catch (InterruptedException e) {
+            throw new CompilerException("Interrupted while compiling", e);
+        } catch (ExecutionException e) {
+            throw new CompilerException("APT failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
         }
-        catch (IOException e) {
-            throw new CompilerException("Error creating file with javac arguments", e);
-        }
-
-        CommandLineUtils.StringStreamConsumer out = new CommandLineUtils.StringStreamConsumer();
-
-        CommandLineUtils.StringStreamConsumer err = new CommandLineUtils.StringStreamConsumer();
-
-        int returnCode;
+    }
 
-        List<CompilerError> messages;
+    /**
+     * Outcome of compiling a partition.
+     */
+    private static final class Partition {
+        boolean success;
+        final StringWriter output = new StringWriter();
+        final List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+    }
 
-        try {
-            returnCode = CommandLineUtils.executeCommandLine(cli, out, err);
+    /**
+     * Compiles the java sources on a {@link CompileServer}, which keeps javac warm between compilations.
+     * Falls back to {@link #compileInProcess(List, List, StreamingDiagnosticListener, CompileMetrics)} if the server can't be used.
+     */
+    protected boolean compileOnServer(AptCompilerConfiguration config, List<String> options, List<String> sourceFiles,
+                                      StreamingDiagnosticListener diagnostics)
+        throws CompilerException {
+        Boolean success = new CompileServerClient(getLogger(), config.getCompileServerIdleTimeout())
+            .compile(options, sourceFiles, diagnostics);
+        if (success==null) {
+            getLogger().warn("Compiling in process instead");
+            return compileInProcess(options, sourceFiles, diagnostics, null);
+        }
+        return success;
+    }
 
-            messages = parseModernStream(new BufferedReader(new StringReader(err.getOutput())));
+    /**
+     * Compiles the java sources on a worker JVM from {@link CompilerWorkerPool}, which runs with
+     * the heap settings and the java launcher of the configuration.
+     */
+    protected boolean compileForked(CompilerConfiguration config, List<String> options, List<String> sourceFiles,
+                                    StreamingDiagnosticListener diagnostics)
+        throws CompilerException {
+        List<String> classpath = CompileServerClient.getPluginClasspath();
+        if (classpath == null) {
+            throw new CompilerException("Unable to determine the classpath for the compiler worker");
         }
-        catch (CommandLineException e) {
-            throw new CompilerException("Error while executing the external compiler.", e);
+        List<String> jvmArgs = new ArrayList<String>();
+        if (!org.codehaus.plexus.util.StringUtils.isEmpty(config.getMeminitial())) {
+            jvmArgs.add("-Xms" + config.getMeminitial());
         }
-        catch (IOException e) {
-            throw new CompilerException("Error while executing the external compiler.", e);
+        if (!org.codehaus.plexus.util.StringUtils.isEmpty(config.getMaxmem())) {
+            jvmArgs.add("-Xmx" + config.getMaxmem());
         }
 
-        if (returnCode != 0 && messages.isEmpty()) {
-            if (err.getOutput().length() == 0) {
-                throw new CompilerException("Unknown error trying to execute the external compiler: " + EOL
-                        + cli.toString());
-            } else {
-                messages.add(new CompilerError("Failure executing javac,  but could not parse the error:" + EOL
-                        + err.getOutput(), true));
-            }
+        CompilerWorkerPool pool = CompilerWorkerPool.INSTANCE;
+        CompilerWorkerPool.Worker worker;
+        try {
+            worker = pool.acquire(getJavaExecutable(config.getExecutable()), jvmArgs, classpath);
+        } catch (IOException e) {
+            throw new CompilerException("Failed to start a compiler worker", e);
         }
 
-        return messages;
+        boolean success;
+        try {
+            success = worker.compile(options, sourceFiles, diagnostics);
+        } catch (IOException e) {
+            pool.discard(worker);
+            throw new CompilerException("Lost the connection to the compiler worker", e);
+        }
+        pool.release(worker);
+        return success;
+    }
+
+    /**
+     * Figures out the java launcher to run the compiler worker with.
+     *
+     * @param executable
+     *      the configured compiler executable, which is normally javac, as it is for the maven-compiler-plugin.
+     */
+    private static String getJavaExecutable(String executable) {
+        if (org.codehaus.plexus.util.StringUtils.isEmpty(executable)) {
+            return new File(System.getProperty("java.home"), "bin/java").getAbsolutePath();
+        }
+        File f = new File(executable);
+        if (f.getName().startsWith("javac")) {
+            // javac or javac.exe
+            return new File(f.getParentFile(), "java" + f.getName().substring(5)).getPath();
+        }
+        return executable;
     }
-*/
-
-//    private File createFileWithArguments(String[] args) throws IOException {
-//        PrintWriter writer = null;
-//        try {
-//            File tempFile = File.createTempFile(JavacCompiler.class.getName(), "arguments");
-//            tempFile.deleteOnExit();
-//
-//            writer = new PrintWriter(new FileWriter(tempFile));
-//
-//            for (int i = 0; i < args.length; i++) {
-//                String argValue = args[i].replace(File.separatorChar, '/');
-//
-//                writer.write("\"" + argValue + "\"");
-//
-//                writer.write(EOL);
-//            }
-//
-//            writer.flush();
-//
-//            return tempFile;
-//
-//        }
-//        finally {
-//            if (writer != null) {
-//                writer.close();
-//            }
-//        }
-//    }
 }
@@ -0,0 +1,102 @@
+package org.kohsuke.stapler;
+
+import org.codehaus.plexus.compiler.CompilerConfiguration;
+
+/**
+ * {@link CompilerConfiguration} with the additional settings that {@link AptCompiler} understands.
+ *
+ * <p>
+ * {@link AptCompiler} also works with a plain {@link CompilerConfiguration}, in which case
+ * all these settings take their default values.
+ */
+public class AptCompilerConfiguration extends CompilerConfiguration {
+    private boolean compileServer;
+
+    private long compileServerIdleTimeout = 60*60*1000;
+
+    private int compileThreads = 1;
+
+    private int maxErrors, maxWarnings;
+
+    private boolean failFast;
+
+    private CompileMetrics metrics;
+
+    /**
+     * If true, compilations are run on a {@link CompileServer}.
+     */
+    public boolean isCompileServer() {
+        return compileServer;
+    }
+
+    public void setCompileServer(boolean compileServer) {
+        this.compileServer = compileServer;
+    }
+
+    /**
+     * Milliseconds that a compile server waits for the next compilation before it exits.
+     */
+    public long getCompileServerIdleTimeout() {
+        return compileServerIdleTimeout;
+    }
+
+    public void setCompileServerIdleTimeout(long compileServerIdleTimeout) {
+        this.compileServerIdleTimeout = compileServerIdleTimeout;
+    }
+
+    /**
+     * Number of threads that compile independent groups of sources concurrently.
+     * 1 to compile everything in a single javac invocation.
+     */
+    public int getCompileThreads() {
+        return compileThreads;
+    }
+
+    public void setCompileThreads(int compileThreads) {
+        this.compileThreads = compileThreads;
+    }
+
+    /**
+     * Maximum number of errors to report, or 0 to report all.
+     */
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    public void setMaxErrors(int maxErrors) {
+        this.maxErrors = maxErrors;
+    }
+
+    /**
+     * Maximum number of warnings to report, or 0 to report all.
+     */
+    public int getMaxWarnings() {
+        return maxWarnings;
+    }
+
+    public void setMaxWarnings(int maxWarnings) {
+        this.maxWarnings = maxWarnings;
+    }
+
+    /**
+     * If true, the compilation stops on the first error.
+     */
+    public boolean isFailFast() {
+        return failFast;
+    }
+
+    public void setFailFast(boolean failFast) {
+        this.failFast = failFast;
+    }
+
+    /**
+     * Where the time spent in the compilation is recorded, or null if it isn't measured.
+     */
+    /*package*/ CompileMetrics getMetrics() {
+        return metrics;
+    }
+
+    /*package*/ void setMetrics(CompileMetrics metrics) {
+        this.metrics = metrics;
+    }
+}
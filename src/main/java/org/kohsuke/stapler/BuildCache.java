@@ -0,0 +1,399 @@
+package org.kohsuke.stapler;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.kohsuke.stapler.processor.ConstructorProcessor;
+import org.kohsuke.stapler.processor.ExportedBeanAnnotationProcessor;
+import org.kohsuke.stapler.processor.ExposedBeanIndex;
+
+/**
+ * Content-addressed cache of the compiler outputs, shared by all the builds of the user.
+ *
+ * <p>
+ * The key covers everything that affects the outputs: the contents of the sources, the contents of
+ * the classpath, the compiler options, and the plugin itself, which contains the annotation processors.
+ * Paths are only included relative to their source roots, and the options that name directories are
+ * left out, so the same commit checked out in different places gets the same key.
+ *
+ * <p>
+ * Each entry is a zip file of the compiler outputs in the output directory. Entries are written
+ * to a temporary file first and then renamed, so concurrent builds never see a partial entry.
+ */
+final class BuildCache {
+    private final File directory;
+
+    BuildCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Computes the cache key.
+     *
+     * @param sources
+     *      all the source files, not just the stale ones.
+     * @param options
+     *      the compiler options.
+     * @param outputDirectory
+     *      left out from the classpath, since it contains the outputs of the previous compilation.
+     */
+    String computeKey(Collection<File> sources, List<String> sourceRoots, List<String> classpath, List<String> options, File outputDirectory) throws IOException {
+        MessageDigest md = createDigest();
+
+        List<File> roots = new ArrayList<File>();
+        for (String root : sourceRoots)
+            roots.add(new File(root));
+
+        Map<String,File> sortedSources = new TreeMap<String,File>();
+        for (File f : sources) {
+            String path = DependencyGraph.relativize(f, roots);
+            sortedSources.put(path!=null ? path : f.getAbsolutePath(), f);
+        }
+        update(md, "sources");
+        for (Map.Entry<String,File> e : sortedSources.entrySet()) {
+            update(md, e.getKey());
+            md.update(digest(e.getValue()));
+        }
+
+        // the order of the classpath matters
+        update(md, "classpath");
+        for (String e : classpath) {
+            File f = new File(e);
+            if (!f.getAbsoluteFile().equals(outputDirectory.getAbsoluteFile()))
+                md.update(digest(f));
+        }
+
+        update(md, "options");
+        for (int i=0; i<options.size(); i++) {
+            String option = options.get(i);
+            if (PATH_OPTIONS.contains(option))
+                i++;    // skip the value, too
+            else
+            if (option.startsWith("-A"+ExportedBeanAnnotationProcessor.STATE_DIRECTORY_OPTION+"="))
+                continue;
+            else
+                update(md, option);
+        }
+
+        update(md, "plugin");
+        md.update(digest(getPluginLocation()));
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * Replaces the compiler outputs in the output directory with the cached ones.
+     *
+     * <p>
+     * The entry is extracted into a temporary directory first, so a corrupt entry leaves
+     * the output directory untouched. If this method throws an exception after that,
+     * the output directory may be left with only some of the outputs.
+     *
+     * @return
+     *      false if the cache doesn't have the entry, in which case the output directory is left untouched.
+     */
+    boolean restore(String key, File outputDirectory) throws IOException {
+        File entry = getEntry(key);
+        if (!entry.exists())
+            return false;
+
+        outputDirectory = outputDirectory.getAbsoluteFile();
+        outputDirectory.getParentFile().mkdirs();
+        // next to the output directory, so that the files can be renamed into it
+        File tmp = File.createTempFile(outputDirectory.getName(), ".cache", outputDirectory.getParentFile());
+        try {
+            tmp.delete();
+            if (!tmp.mkdir())
+                throw new IOException("Failed to create "+tmp);
+            extract(entry, tmp);
+
+            deleteOutputs(outputDirectory, "");
+            moveOutputs(tmp, outputDirectory);
+        } finally {
+            deleteRecursively(tmp);
+        }
+        // the entry was useful, so keep it from looking stale to whoever cleans up the cache
+        entry.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    private static void extract(File entry, File dir) throws IOException {
+        // unlike ZipInputStream, ZipFile refuses a truncated file instead of finding no entries in it
+        ZipFile zip = new ZipFile(entry);
+        try {
+            byte[] buf = new byte[8192];
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry ze = e.nextElement();
+                if (!isCompilerOutput(ze.getName()) || ze.getName().contains(".."))
+                    throw new IOException("Unexpected entry "+ze.getName()+" in "+entry);
+                File f = new File(dir, ze.getName());
+                f.getParentFile().mkdirs();
+                InputStream in = zip.getInputStream(ze);
+                try {
+                    OutputStream out = new FileOutputStream(f);
+                    try {
+                        int len;
+                        while ((len=in.read(buf))>=0)
+                            out.write(buf,0,len);
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static void moveOutputs(File from, File to) throws IOException {
+        File[] children = from.listFiles();
+        if (children==null)     return;
+        for (File child : children) {
+            File dest = new File(to, child.getName());
+            if (child.isDirectory()) {
+                moveOutputs(child, dest);
+            } else {
+                dest.getParentFile().mkdirs();
+                if (!child.renameTo(dest))
+                    throw new IOException("Failed to move "+child+" to "+dest);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children!=null)
+            for (File child : children)
+                deleteRecursively(child);
+        f.delete();
+    }
+
+    /**
+     * Records the compiler outputs in the output directory.
+     *
+     * <p>
+     * Everything that looks like a compiler output is recorded, so this should only be called
+     * when the compiler started from an empty output directory (see {@link #hasOutputs(File)}).
+     * Otherwise the classes of the sources deleted since the last clean build would end up in the entry.
+     */
+    void store(String key, File outputDirectory) throws IOException {
+        File entry = getEntry(key);
+        entry.getParentFile().mkdirs();
+        File tmp = File.createTempFile(key, ".tmp", entry.getParentFile());
+        try {
+            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                addOutputs(out, outputDirectory, "");
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(entry) && !entry.exists())
+                throw new IOException("Failed to create "+entry);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private File getEntry(String key) {
+        return new File(directory, key.substring(0,2)+'/'+key+".zip");
+    }
+
+    private static void addOutputs(ZipOutputStream out, File dir, String prefix) throws IOException {
+        File[] children = dir.listFiles();
+        if (children==null)     return;
+        Arrays.sort(children);
+        byte[] buf = new byte[8192];
+        for (File child : children) {
+            String path = prefix+child.getName();
+            if (child.isDirectory()) {
+                addOutputs(out, child, path+'/');
+            } else
+            if (isCompilerOutput(path)) {
+                out.putNextEntry(new ZipEntry(path));
+                InputStream in = new FileInputStream(child);
+                try {
+                    int len;
+                    while ((len=in.read(buf))>=0)
+                        out.write(buf,0,len);
+                } finally {
+                    in.close();
+                }
+                out.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Determines if the output directory contains any compiler output.
+     */
+    static boolean hasOutputs(File dir) {
+        return hasOutputs(dir, "");
+    }
+
+    private static boolean hasOutputs(File dir, String prefix) {
+        File[] children = dir.listFiles();
+        if (children==null)     return false;
+        for (File child : children) {
+            String path = prefix+child.getName();
+            if (child.isDirectory() ? hasOutputs(child, path+'/') : isCompilerOutput(path))
+                return true;
+        }
+        return false;
+    }
+
+    private static void deleteOutputs(File dir, String prefix) {
+        File[] children = dir.listFiles();
+        if (children==null)     return;
+        for (File child : children) {
+            String path = prefix+child.getName();
+            if (child.isDirectory())
+                deleteOutputs(child, path+'/');
+            else
+            if (isCompilerOutput(path))
+                child.delete();
+        }
+    }
+
+    /**
+     * Determines if the file of the given path relative to the output directory is produced
+     * by the compiler, as opposed to the resources and such that other plugins put there.
+     */
+    static boolean isCompilerOutput(String path) {
+        for (String suffix : OUTPUT_SUFFIXES)
+            if (path.endsWith(suffix))
+                return true;
+        // the file name alone, since the index of the default package is at the top
+        if (OUTPUT_NAMES.contains(path.substring(path.lastIndexOf('/')+1)))
+            return true;
+        return OUTPUT_FILES.contains(path);
+    }
+
+    /**
+     * Digests the contents of the given file, or all the files in the given directory.
+     * Digests of the files that haven't changed since the last time are reused.
+     */
+    private static byte[] digest(File f) throws IOException {
+        if (f.isDirectory()) {
+            MessageDigest md = createDigest();
+            digestDirectory(md, f, "");
+            return md.digest();
+        }
+        if (!f.exists())
+            return new byte[0];
+
+        String key = f.getAbsolutePath()+':'+f.length()+':'+f.lastModified();
+        synchronized (DIGESTS) {
+            byte[] d = DIGESTS.get(key);
+            if (d!=null)    return d;
+        }
+        byte[] d = SourceIndex.digest(f);
+        synchronized (DIGESTS) {
+            DIGESTS.put(key, d);
+        }
+        return d;
+    }
+
+    private static void digestDirectory(MessageDigest md, File dir, String prefix) throws IOException {
+        File[] children = dir.listFiles();
+        if (children==null)     return;
+        Arrays.sort(children);
+        for (File child : children) {
+            String path = prefix+child.getName();
+            if (child.isDirectory()) {
+                digestDirectory(md, child, path+'/');
+            } else {
+                update(md, path);
+                md.update(digest(child));
+            }
+        }
+    }
+
+    /**
+     * Finds the jar file (or the directory) that this plugin is loaded from.
+     */
+    private static File getPluginLocation() throws IOException {
+        CodeSource cs = BuildCache.class.getProtectionDomain().getCodeSource();
+        if (cs==null || cs.getLocation()==null)
+            throw new IOException("Unable to determine the location of the plugin");
+        try {
+            return new File(cs.getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw (IOException)new IOException("Unable to determine the location of the plugin").initCause(e);
+        } catch (IllegalArgumentException e) {
+            throw (IOException)new IOException("Unable to determine the location of the plugin").initCause(e);
+        }
+    }
+
+    private static void update(MessageDigest md, String s) {
+        try {
+            md.update(s.getBytes("UTF-8"));
+            md.update((byte)0);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e); // UTF-8 is always there
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // SHA-1 is always there
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder buf = new StringBuilder();
+        for (byte b : bytes)
+            buf.append(Integer.toHexString((b&0xFF)|0x100).substring(1));
+        return buf.toString();
+    }
+
+    /**
+     * Options whose values are absolute paths, which don't affect the outputs.
+     */
+    private static final List<String> PATH_OPTIONS = Arrays.asList("-d", "-s", "-classpath", "-sourcepath");
+
+    private static final List<String> OUTPUT_SUFFIXES = Arrays.asList(".class", ".stapler", ".javadoc");
+
+    private static final List<String> OUTPUT_NAMES = Arrays.asList(ConstructorProcessor.INDEX);
+
+    private static final List<String> OUTPUT_FILES = Arrays.asList(
+            ExportedBeanAnnotationProcessor.BEANS, ExposedBeanIndex.FILE_NAME, ExportedBeanAnnotationProcessor.EXPORTERS);
+
+    /**
+     * Digests of the files, keyed by their path, size, and timestamp.
+     * Most of the classpath is shared by all the modules in a reactor, so this saves a lot of reading.
+     * Kept in the access order, and the least recently used ones are dropped, so that a long-lived
+     * Maven process doesn't keep the digests of every file it has ever seen.
+     */
+    private static final Map<String,byte[]> DIGESTS = new LinkedHashMap<String,byte[]>(16,0.75f,true) {
+        protected boolean removeEldestEntry(Map.Entry<String,byte[]> eldest) {
+            return size()>MAX_DIGESTS;
+        }
+    };
+
+    private static final int MAX_DIGESTS = 10000;
+}
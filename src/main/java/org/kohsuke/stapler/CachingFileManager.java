@@ -0,0 +1,186 @@
+package org.kohsuke.stapler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.JavaFileObject.Kind;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+/**
+ * {@link javax.tools.JavaFileManager} that serves the jar files on the classpath from {@link JarIndexCache},
+ * instead of opening them for every compilation like {@link StandardJavaFileManager} does.
+ *
+ * <p>
+ * Directories on the classpath are still handled by the {@link StandardJavaFileManager}, since
+ * their contents change between compilations.
+ */
+final class CachingFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+    private final JarIndexCache cache;
+
+    private final List<File> directories = new ArrayList<File>();
+    private final List<JarIndexCache.JarIndex> jars = new ArrayList<JarIndexCache.JarIndex>();
+
+    /**
+     * @param classpath
+     *      the classpath to serve as {@link StandardLocation#CLASS_PATH}, which replaces the <tt>-classpath</tt> option.
+     */
+    CachingFileManager(StandardJavaFileManager fileManager, List<File> classpath, JarIndexCache cache) throws IOException {
+        super(fileManager);
+        this.cache = cache;
+        try {
+            for (File e : classpath) {
+                if (e.isDirectory())
+                    directories.add(e);
+                else
+                if (e.isFile())
+                    jars.add(cache.acquire(e));
+            }
+            fileManager.setLocation(StandardLocation.CLASS_PATH, directories);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Iterable<JavaFileObject> list(Location location, String packageName, Set<Kind> kinds, boolean recurse) throws IOException {
+        if (location!=StandardLocation.CLASS_PATH)
+            return super.list(location, packageName, kinds, recurse);
+
+        List<JavaFileObject> r = new ArrayList<JavaFileObject>();
+        for (JavaFileObject f : super.list(location, packageName, kinds, recurse))
+            r.add(f);
+        for (JarIndexCache.JarIndex jar : jars)
+            for (ZipEntry e : jar.list(packageName, recurse)) {
+                Kind kind = getKind(e.getName());
+                if (kinds.contains(kind))
+                    r.add(new JarEntryFileObject(jar, e, kind));
+            }
+        return r;
+    }
+
+    @Override
+    public String inferBinaryName(Location location, JavaFileObject file) {
+        if (file instanceof JarEntryFileObject)
+            return ((JarEntryFileObject)file).getBinaryName();
+        return super.inferBinaryName(location, file);
+    }
+
+    @Override
+    public boolean isSameFile(FileObject a, FileObject b) {
+        if (a instanceof JarEntryFileObject || b instanceof JarEntryFileObject)
+            return a.equals(b);
+        return super.isSameFile(a, b);
+    }
+
+    /**
+     * Releases the jar files back to the cache, and closes the underlying file manager.
+     */
+    @Override
+    public void close() throws IOException {
+        for (JarIndexCache.JarIndex jar : jars)
+            cache.release(jar);
+        jars.clear();
+        super.close();
+    }
+
+    private static Kind getKind(String name) {
+        for (Kind k : Kind.values())
+            if (k!=Kind.OTHER && name.endsWith(k.extension))
+                return k;
+        return Kind.OTHER;
+    }
+
+    /**
+     * A class file (or a resource) inside a cached jar.
+     */
+    private static final class JarEntryFileObject extends SimpleJavaFileObject {
+        private final JarIndexCache.JarIndex jar;
+        private final ZipEntry entry;
+
+        JarEntryFileObject(JarIndexCache.JarIndex jar, ZipEntry entry, Kind kind) {
+            super(toUri(jar.file, entry), kind);
+            this.jar = jar;
+            this.entry = entry;
+        }
+
+        private static URI toUri(File jar, ZipEntry entry) {
+            try {
+                return new URI("jar:"+jar.toURI()+"!/"+new URI(null,entry.getName(),null).getRawPath());
+            } catch (URISyntaxException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        String getBinaryName() {
+            String name = entry.getName();
+            return name.substring(0, name.length()-getKind().extension.length()).replace('/', '.');
+        }
+
+        @Override
+        public String getName() {
+            return jar.file.getPath()+'('+entry.getName()+')';
+        }
+
+        @Override
+        public boolean isNameCompatible(String simpleName, Kind kind) {
+            // the URI is opaque, so the default implementation doesn't work
+            String name = entry.getName();
+            return getKind()==kind && name.substring(name.lastIndexOf('/')+1).equals(simpleName+kind.extension);
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            return jar.zip.getInputStream(entry);
+        }
+
+        @Override
+        public long getLastModified() {
+            return entry.getTime();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof JarEntryFileObject))     return false;
+            JarEntryFileObject that = (JarEntryFileObject)o;
+            return jar==that.jar && entry.getName().equals(that.entry.getName());
+        }
+
+        @Override
+        public int hashCode() {
+            return jar.hashCode()*31+entry.getName().hashCode();
+        }
+    }
+
+    /**
+     * Removes the <tt>-classpath</tt> option from the given options.
+     *
+     * @return
+     *      the classpath entries specified by the removed option.
+     */
+    static List<File> extractClasspath(List<String> options) {
+        int idx = options.indexOf("-classpath");
+        if (idx<0 || idx+1>=options.size())
+            return Collections.emptyList();
+
+        String classpath = options.remove(idx+1);
+        options.remove(idx);
+        List<File> r = new ArrayList<File>();
+        for (String e : classpath.split(File.pathSeparator))
+            if (e.length()>0)
+                r.add(new File(e));
+        return r;
+    }
+}
@@ -0,0 +1,125 @@
+package org.kohsuke.stapler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Timings and counters of a compilation, written out as a JSON report so that slow builds
+ * can be attributed to scanning, the javac phases, annotation processing, or writing the outputs.
+ *
+ * <p>
+ * The javac phases and the annotation processing rounds are only measured when javac runs
+ * in the Maven JVM. Compilations running concurrently add up their phase times, so the phases
+ * can add up to more than the wall-clock compilation time.
+ */
+final class CompileMetrics {
+    private long scanTime, compileTime;
+    private int sourceFiles, compiledFiles;
+    private int filesWritten;
+    private long bytesWritten;
+    private boolean cacheHit;
+
+    /**
+     * Nanoseconds spent in each javac phase.
+     */
+    private final Map<String,Long> phases = new TreeMap<String,Long>();
+
+    /**
+     * Nanoseconds spent in each round of annotation processing.
+     */
+    private final List<Long> processorRounds = new ArrayList<Long>();
+
+    synchronized void setScanTime(long millis) {
+        this.scanTime = millis;
+    }
+
+    synchronized void setCompileTime(long millis) {
+        this.compileTime = millis;
+    }
+
+    synchronized void setSourceFiles(int all, int compiled) {
+        this.sourceFiles = all;
+        this.compiledFiles = compiled;
+    }
+
+    synchronized void setCacheHit(boolean cacheHit) {
+        this.cacheHit = cacheHit;
+    }
+
+    synchronized void addPhaseTime(String phase, long nanos) {
+        Long t = phases.get(phase);
+        phases.put(phase, t==null ? nanos : t+nanos);
+    }
+
+    synchronized void addProcessorRound(long nanos) {
+        processorRounds.add(nanos);
+    }
+
+    /**
+     * Counts the files in the directory that were written since the given time.
+     */
+    synchronized void countOutputs(File dir, long since) {
+        File[] children = dir.listFiles();
+        if (children==null)     return;
+        for (File child : children) {
+            if (child.isDirectory())
+                countOutputs(child, since);
+            else
+            if (child.lastModified()>=since) {
+                filesWritten++;
+                bytesWritten += child.length();
+            }
+        }
+    }
+
+    synchronized void write(File report, File outputDirectory) throws IOException {
+        report.getParentFile().mkdirs();
+        PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(report),"UTF-8"));
+        try {
+            w.println("{");
+            w.println("  \"outputDirectory\": "+quote(outputDirectory.getPath())+",");
+            w.println("  \"cacheHit\": "+cacheHit+",");
+            w.println("  \"sourceFiles\": "+sourceFiles+",");
+            w.println("  \"compiledFiles\": "+compiledFiles+",");
+            w.println("  \"scanMillis\": "+scanTime+",");
+            w.println("  \"compileMillis\": "+compileTime+",");
+            w.println("  \"filesPerSecond\": "+(compileTime>0 ? compiledFiles*1000L/compileTime : 0)+",");
+            w.println("  \"filesWritten\": "+filesWritten+",");
+            w.println("  \"bytesWritten\": "+bytesWritten+",");
+            w.println("  \"phaseMillis\": {");
+            int i=0;
+            for (Map.Entry<String,Long> e : phases.entrySet())
+                w.println("    "+quote(e.getKey())+": "+e.getValue()/1000000+(++i<phases.size() ? "," : ""));
+            w.println("  },");
+            w.print("  \"processorRoundMillis\": [");
+            for (i=0; i<processorRounds.size(); i++)
+                w.print((i>0 ? ", " : "")+processorRounds.get(i)/1000000);
+            w.println("]");
+            w.println("}");
+        } finally {
+            w.close();
+        }
+    }
+
+    private static String quote(String s) {
+        StringBuilder buf = new StringBuilder("\"");
+        for (int i=0; i<s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch=='"' || ch=='\\')
+                buf.append('\\').append(ch);
+            else
+            if (ch<0x20)
+                buf.append(String.format("\\u%04x",(int)ch));
+            else
+                buf.append(ch);
+        }
+        return buf.append('"').toString();
+    }
+}
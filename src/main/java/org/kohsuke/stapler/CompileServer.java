@@ -0,0 +1,281 @@
+package org.kohsuke.stapler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+
+/**
+ * Long-lived JVM that keeps javac warm between compilations, so that each module of a build
+ * (and each build) doesn't pay for loading and JIT-compiling javac all over again.
+ *
+ * <p>
+ * The server listens on the loopback interface. The port and a random secret are written to
+ * a file readable only by the owner, and a client has to present the secret before it can submit
+ * a compilation. The jar files on the classpath stay open in {@link JarIndexCache} for the
+ * next compilation.
+ *
+ * <p>
+ * The server exits after being idle for the given time.
+ *
+ * <h2>Protocol</h2>
+ * <p>
+ * The client sends the secret, the compiler options, the source files, and whether to abort on
+ * the first error. The server streams back records as javac produces them,
+ * each starting with a type byte: {@link #OUTPUT} for a line of compiler output, {@link #DIAGNOSTIC}
+ * for a diagnostic (its kind, file, line, column, and message), and finally {@link #END} followed by
+ * a boolean that indicates if the compilation was successful.
+ *
+ * @see CompileServerClient
+ */
+public final class CompileServer {
+    private final File portFile;
+    private final long idleTimeout;
+    private final String secret;
+
+    private final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+    private final AtomicInteger activeJobs = new AtomicInteger();
+
+    private CompileServer(File portFile, long idleTimeout) {
+        this.portFile = portFile;
+        this.idleTimeout = idleTimeout;
+
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder buf = new StringBuilder();
+        for (byte b : random)
+            buf.append(Integer.toHexString((b&0xFF)|0x100).substring(1));
+        this.secret = buf.toString();
+    }
+
+    private void run() throws IOException {
+        ServerSocket ss = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        ss.setSoTimeout((int)Math.min(idleTimeout,Integer.MAX_VALUE));
+        writePortFile(ss.getLocalPort());
+        log("Listening on port "+ss.getLocalPort());
+
+        try {
+            while (true) {
+                final Socket s;
+                try {
+                    s = ss.accept();
+                } catch (SocketTimeoutException e) {
+                    if (activeJobs.get()==0) {
+                        log("Idle for too long. Exiting");
+                        return;
+                    }
+                    continue;
+                }
+                activeJobs.incrementAndGet();
+                new Thread("compile job from "+s.getRemoteSocketAddress()) {
+                    public void run() {
+                        try {
+                            serve(s);
+                        } catch (IOException e) {
+                            log("Failed to serve the request: "+e);
+                        } finally {
+                            activeJobs.decrementAndGet();
+                            try {
+                                s.close();
+                            } catch (IOException ignore) {
+                            }
+                        }
+                    }
+                }.start();
+            }
+        } finally {
+            portFile.delete();
+            ss.close();
+        }
+    }
+
+    private void writePortFile(int port) throws IOException {
+        File tmp = new File(portFile.getPath()+".tmp");
+        tmp.delete();
+        tmp.createNewFile();
+        // only the owner gets to see the secret
+        tmp.setReadable(false,false);
+        tmp.setReadable(true,true);
+        PrintStream w = new PrintStream(new FileOutputStream(tmp),true,"UTF-8");
+        w.println(port);
+        w.println(secret);
+        w.close();
+        portFile.delete();
+        if (!tmp.renameTo(portFile))
+            throw new IOException("Failed to create "+portFile);
+    }
+
+    private void serve(Socket s) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+        // the length of the secret is known, so nothing big gets allocated for a stranger
+        if (!MessageDigest.isEqual(secret.getBytes("UTF-8"),readBytes(in,secret.length()))) {
+            log("Rejected a request from "+s.getRemoteSocketAddress());
+            return;
+        }
+        List<String> options = readStrings(in);
+        List<String> sourceFiles = readStrings(in);
+        final boolean failFast = in.readBoolean();
+        log("Compiling "+sourceFiles.size()+" source file(s)");
+
+        final Writer w = new RecordWriter(out);
+        DiagnosticListener<JavaFileObject> diagnostics = new DiagnosticListener<JavaFileObject>() {
+            public void report(Diagnostic<? extends JavaFileObject> d) {
+                try {
+                    w.flush();  // keep the order with the rest of the output
+                    out.writeByte(DIAGNOSTIC);
+                    writeString(out, d.getKind().name());
+                    String path = JavacRunner.getPath(d.getSource());
+                    writeString(out, path!=null ? path : "");
+                    out.writeLong(d.getLineNumber());
+                    out.writeLong(d.getColumnNumber());
+                    writeString(out, d.getMessage(null));
+                    out.flush();
+                } catch (IOException e) {
+                    // the client is gone, so there's no point in continuing
+                    throw new JavacRunner.CompilationAborted();
+                }
+                if (failFast && d.getKind()==Diagnostic.Kind.ERROR)
+                    throw new JavacRunner.CompilationAborted();
+            }
+        };
+        boolean success = JavacRunner.run(compiler, diagnostics, w, options, sourceFiles, null);
+        w.flush();
+
+        out.writeByte(END);
+        out.writeBoolean(success);
+        out.flush();
+    }
+
+    /**
+     * Sends the compiler output to the client, line by line.
+     */
+    private static final class RecordWriter extends Writer {
+        private final DataOutputStream out;
+        private final StringBuilder line = new StringBuilder();
+
+        RecordWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i=off; i<off+len; i++) {
+                char ch = cbuf[i];
+                if (ch=='\n') {
+                    sendLine();
+                } else
+                if (ch!='\r') {
+                    line.append(ch);
+                }
+            }
+        }
+
+        private void sendLine() throws IOException {
+            out.writeByte(OUTPUT);
+            writeString(out, line.toString());
+            line.setLength(0);
+        }
+
+        public void flush() throws IOException {
+            if (line.length()>0)
+                sendLine();
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static void log(String msg) {
+        System.out.println(new Date()+" "+msg);
+    }
+
+    /*package*/ static void writeString(DataOutputStream out, String s) throws IOException {
+        // writeUTF can't handle a long classpath
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /*package*/ static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in,MAX_FRAME_LENGTH),"UTF-8");
+    }
+
+    /**
+     * Reads a length-prefixed byte array, refusing to allocate more than the given size.
+     */
+    private static byte[] readBytes(DataInputStream in, int maxLength) throws IOException {
+        int len = in.readInt();
+        if (len<0 || len>maxLength)
+            throw new IOException("Invalid frame length: "+len);
+        byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /*package*/ static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String s : strings)
+            writeString(out, s);
+    }
+
+    /*package*/ static List<String> readStrings(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n<0 || n>MAX_FRAME_LENGTH)
+            throw new IOException("Invalid list length: "+n);
+        List<String> r = new ArrayList<String>(Math.min(n,1024));
+        for (int i=0; i<n; i++)
+            r.add(readString(in));
+        return r;
+    }
+
+    /*package*/ static final int OUTPUT = 'O';
+    /*package*/ static final int DIAGNOSTIC = 'D';
+    /*package*/ static final int END = 'E';
+
+    /**
+     * Upper bound of a string or a list on the wire, so that a garbled stream doesn't
+     * make either side allocate an arbitrarily large array.
+     */
+    private static final int MAX_FRAME_LENGTH = 16*1024*1024;
+
+    /**
+     * Usage: CompileServer PORTFILE IDLETIMEOUT
+     *
+     * @param args
+     *      the file to write the port and the secret to, and the idle timeout in milliseconds.
+     */
+    public static void main(String[] args) throws Exception {
+        File portFile = new File(args[0]);
+        File logFile = new File(portFile.getPath()+".log");
+        PrintStream log = new PrintStream(new FileOutputStream(logFile,true),true);
+        System.setOut(log);
+        System.setErr(log);
+
+        new CompileServer(portFile, Long.parseLong(args[1])).run();
+        System.exit(0);
+    }
+}
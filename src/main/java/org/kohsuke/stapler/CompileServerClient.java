@@ -0,0 +1,277 @@
+package org.kohsuke.stapler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.tools.Diagnostic.Kind;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Submits compilations to a {@link CompileServer}, starting one if necessary.
+ *
+ * <p>
+ * Servers are identified by the JVM and the classpath of this plugin, so a build that uses
+ * a different version of the plugin gets its own server.
+ */
+final class CompileServerClient {
+    private final Logger logger;
+    private final long idleTimeout;
+
+    /**
+     * @param idleTimeout
+     *      milliseconds that a newly started server waits for the next compilation before it exits.
+     */
+    CompileServerClient(Logger logger, long idleTimeout) {
+        this.logger = logger;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Runs the compilation on the server.
+     *
+     * @param diagnostics
+     *      receives the diagnostics as the server reports them.
+     * @return
+     *      true if the compilation was successful, or null if the server couldn't be used,
+     *      in which case the caller should compile by itself.
+     */
+    Boolean compile(List<String> options, List<String> sourceFiles, StreamingDiagnosticListener diagnostics) {
+        List<String> classpath = getPluginClasspath();
+        if (classpath==null) {
+            logger.warn("Unable to determine the classpath for the compile server");
+            return null;
+        }
+        String java = new File(System.getProperty("java.home"),"bin/java").getAbsolutePath();
+        File portFile = new File(getServerDirectory(),
+            Integer.toHexString((java+classpath).hashCode())+".port");
+
+        try {
+            Socket s = connect(portFile);
+            if (s==null) {
+                startServer(java, classpath, portFile);
+                s = connect(portFile);
+                if (s==null) {
+                    logger.warn("Failed to connect to the compile server. See "+portFile+".log");
+                    return null;
+                }
+            }
+
+            try {
+                return submit(s, readPortFile(portFile)[1], options, sourceFiles, diagnostics);
+            } finally {
+                s.close();
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to compile on the compile server", e);
+            return null;
+        }
+    }
+
+    /**
+     * Sends a compilation to the server over an established connection, and waits for it to complete.
+     * The compiler output is printed to {@link System#out}, and the diagnostics are sent to the listener, as they arrive.
+     *
+     * @param secret
+     *      the secret that the server wrote to its port file.
+     * @return
+     *      true if the compilation was successful.
+     */
+    /*package*/ static boolean submit(Socket s, String secret, List<String> options, List<String> sourceFiles, StreamingDiagnosticListener diagnostics) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+        CompileServer.writeString(out, secret);
+        CompileServer.writeStrings(out, options);
+        CompileServer.writeStrings(out, sourceFiles);
+        out.writeBoolean(diagnostics.isFailFast());
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        while (true) {
+            int type = in.readUnsignedByte();
+            switch (type) {
+            case CompileServer.OUTPUT:
+                System.out.println(CompileServer.readString(in));
+                break;
+            case CompileServer.DIAGNOSTIC:
+                Kind kind = Kind.valueOf(CompileServer.readString(in));
+                String file = CompileServer.readString(in);
+                long line = in.readLong();
+                long column = in.readLong();
+                diagnostics.report(kind, file.length()>0 ? file : null, line, column, CompileServer.readString(in));
+                break;
+            case CompileServer.END:
+                return in.readBoolean();
+            default:
+                throw new IOException("Unexpected record type "+type);
+            }
+        }
+    }
+
+    /**
+     * Connects to the server recorded in the port file.
+     *
+     * @return null if no server is running.
+     */
+    private Socket connect(File portFile) {
+        try {
+            if (!portFile.exists())
+                return null;
+            int port = Integer.parseInt(readPortFile(portFile)[0]);
+            return new Socket(InetAddress.getByName("127.0.0.1"), port);
+        } catch (IOException e) {
+            // the server is gone
+            portFile.delete();
+            return null;
+        } catch (NumberFormatException e) {
+            portFile.delete();
+            return null;
+        }
+    }
+
+    /*package*/ static String[] readPortFile(File portFile) throws IOException {
+        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(portFile),"UTF-8"));
+        try {
+            return new String[]{r.readLine(), r.readLine()};
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Launches a new server in the background, and waits for it to come up.
+     */
+    private void startServer(String java, List<String> classpath, File portFile) throws IOException {
+        logger.info("Starting the compile server");
+        portFile.getParentFile().mkdirs();
+        Process p = launch(java, Collections.<String>emptyList(), classpath, portFile, idleTimeout);
+        // the server writes to its own log file
+        p.getInputStream().close();
+        p.getErrorStream().close();
+        p.getOutputStream().close();
+        waitForPortFile(portFile);
+    }
+
+    /**
+     * Launches a {@link CompileServer} JVM.
+     *
+     * @param jvmArgs
+     *      additional arguments to the JVM, such as the heap size.
+     */
+    /*package*/ static Process launch(String java, List<String> jvmArgs, List<String> classpath, File portFile, long idleTimeout) throws IOException {
+        StringBuilder cp = new StringBuilder();
+        for (String e : classpath) {
+            if (cp.length()>0)  cp.append(File.pathSeparatorChar);
+            cp.append(e);
+        }
+
+        List<String> cmds = new ArrayList<String>();
+        cmds.add(java);
+        cmds.addAll(jvmArgs);
+        cmds.add("-cp");
+        cmds.add(cp.toString());
+        cmds.add(CompileServer.class.getName());
+        cmds.add(portFile.getAbsolutePath());
+        cmds.add(String.valueOf(idleTimeout));
+        return new ProcessBuilder(cmds).start();
+    }
+
+    /**
+     * Waits for a newly launched server to write its port file.
+     *
+     * @return false if the server didn't come up in time.
+     */
+    /*package*/ static boolean waitForPortFile(File portFile) throws IOException {
+        long timeout = System.currentTimeMillis()+STARTUP_TIMEOUT;
+        while (!portFile.exists()) {
+            if (System.currentTimeMillis()>=timeout)
+                return false;
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw (IOException)new IOException("Interrupted while waiting for the compile server").initCause(e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Where the port files and the server logs are kept.
+     */
+    private static File getServerDirectory() {
+        return new File(System.getProperty("user.home"),".stapler/compile-server");
+    }
+
+    /**
+     * Figures out the classpath that this plugin is loaded from, which is what the server needs.
+     *
+     * @return null if it can't be determined.
+     */
+    /*package*/ static List<String> getPluginClasspath() {
+        ClassLoader cl = CompileServerClient.class.getClassLoader();
+        if (cl instanceof URLClassLoader) {
+            List<String> r = new ArrayList<String>();
+            for (URL url : ((URLClassLoader)cl).getURLs())
+                if (url.getProtocol().equals("file"))
+                    r.add(toFile(url).getAbsolutePath());
+            return r;
+        }
+
+        // otherwise locate the jars of the classes that the compiler needs
+        Set<String> r = new LinkedHashSet<String>();
+        for (Class c : new Class[]{CompileServerClient.class, org.kohsuke.stapler.export.Exported.class,
+                org.apache.commons.lang.StringUtils.class, org.apache.commons.collections.CollectionUtils.class}) {
+            String jar = whichJar(c);
+            if (jar==null)  return null;
+            r.add(jar);
+        }
+        return new ArrayList<String>(r);
+    }
+
+    /**
+     * Finds the jar file or the directory that the given class is loaded from.
+     */
+    private static String whichJar(Class c) {
+        URL url = c.getClassLoader().getResource(c.getName().replace('.', '/') + ".class");
+        if (url==null)  return null;
+        String s = url.toExternalForm();
+        try {
+            if (s.startsWith("jar:")) {
+                s = s.substring(4, s.indexOf('!'));
+                return toFile(new URL(s)).getAbsolutePath();
+            }
+            if (s.startsWith("file:")) {
+                // a class directory
+                String path = toFile(url).getAbsolutePath();
+                return path.substring(0, path.length()-(c.getName().length()+".class".length()));
+            }
+        } catch (IOException e) {
+            // fall through
+        }
+        return null;
+    }
+
+    private static File toFile(URL url) {
+        try {
+            return new File(URLDecoder.decode(url.getPath(),"UTF-8"));
+        } catch (IOException e) {
+            throw new AssertionError(e); // UTF-8 is always there
+        }
+    }
+
+    private static final long STARTUP_TIMEOUT = 30*1000;
+}
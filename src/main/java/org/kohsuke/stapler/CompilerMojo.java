@@ -20,12 +20,8 @@ package org.kohsuke.stapler;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.CompilationFailureException;
 import org.apache.maven.plugin.MojoExecutionException;
-import org.codehaus.plexus.compiler.util.scan.SimpleSourceInclusionScanner;
-import org.codehaus.plexus.compiler.util.scan.SourceInclusionScanner;
-import org.codehaus.plexus.compiler.util.scan.StaleSourceScanner;
 
 import java.io.File;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -106,6 +102,16 @@ public class CompilerMojo
         return outputDirectory;
     }
 
+    protected Set getSourceIncludes()
+    {
+        return includes;
+    }
+
+    protected Set getSourceExcludes()
+    {
+        return excludes;
+    }
+
     public void execute()
         throws MojoExecutionException, CompilationFailureException {
         super.execute();
@@ -113,13 +119,13 @@ public class CompilerMojo
         projectArtifact.setFile( outputDirectory );
     }
 
-    protected SourceInclusionScanner getSourceInclusionScanner( int staleMillis )
+    protected RecordingStaleSourceScanner getSourceInclusionScanner( int staleMillis )
     {
-        SourceInclusionScanner scanner = null;
+        RecordingStaleSourceScanner scanner = null;
 
         if ( includes.isEmpty() && excludes.isEmpty() )
         {
-            scanner = new StaleSourceScanner( staleMillis );
+            scanner = new RecordingStaleSourceScanner( staleMillis );
         }
         else
         {
@@ -127,28 +133,7 @@ public class CompilerMojo
             {
                 includes.add( "**/*.java" );
             }
-            scanner = new StaleSourceScanner( staleMillis, includes, excludes );
-        }
-
-        return scanner;
-    }
-
-    protected SourceInclusionScanner getSourceInclusionScanner( String inputFileEnding )
-    {
-        SourceInclusionScanner scanner = null;
-
-        if ( includes.isEmpty() && excludes.isEmpty() )
-        {
-            includes = Collections.singleton( "**/*." + inputFileEnding );
-            scanner = new SimpleSourceInclusionScanner( includes, Collections.EMPTY_SET );
-        }
-        else
-        {
-            if ( includes.isEmpty() )
-            {
-                includes.add( "**/*." + inputFileEnding );
-            }
-            scanner = new SimpleSourceInclusionScanner( includes, excludes );
+            scanner = new RecordingStaleSourceScanner( staleMillis, includes, excludes );
         }
 
         return scanner;
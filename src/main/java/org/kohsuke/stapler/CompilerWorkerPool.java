@@ -0,0 +1,177 @@
+package org.kohsuke.stapler;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pool of compiler worker JVMs that run forked compilations.
+ *
+ * <p>
+ * A worker is a {@link CompileServer} that this JVM starts with its own heap settings,
+ * and that stays around to run the next forked compilation with the same settings, such as
+ * the other modules in the reactor. Unlike the shared compile server, workers are private
+ * to this JVM, and they are killed when it exits.
+ */
+final class CompilerWorkerPool {
+    /**
+     * Idle workers keyed by their command line, most recently used first.
+     */
+    private final Map<String,LinkedList<Worker>> idle = new HashMap<String,LinkedList<Worker>>();
+
+    /**
+     * All the live workers, idle or not.
+     */
+    private final List<Worker> workers = new ArrayList<Worker>();
+
+    private CompilerWorkerPool() {
+        Runtime.getRuntime().addShutdownHook(new Thread("Stapler compiler worker shutdown") {
+            public void run() {
+                shutdown();
+            }
+        });
+    }
+
+    final class Worker {
+        private final String key;
+        private final Process process;
+        private final File portFile;
+        private int port;
+        private String secret;
+
+        private Worker(String key, Process process, File portFile) {
+            this.key = key;
+            this.process = process;
+            this.portFile = portFile;
+        }
+
+        private boolean isAlive() {
+            try {
+                process.exitValue();
+                return false;
+            } catch (IllegalThreadStateException e) {
+                return true;
+            }
+        }
+
+        /**
+         * Runs a compilation on this worker. The compiler output streams back to {@link System#out},
+         * and the diagnostics to the listener.
+         *
+         * @return
+         *      true if the compilation was successful.
+         * @throws IOException
+         *      if the communication with the worker failed, in which case the worker should be discarded.
+         */
+        boolean compile(List<String> options, List<String> sourceFiles, StreamingDiagnosticListener diagnostics) throws IOException {
+            Socket s = new Socket(InetAddress.getByName("127.0.0.1"), port);
+            try {
+                return CompileServerClient.submit(s, secret, options, sourceFiles, diagnostics);
+            } finally {
+                s.close();
+            }
+        }
+
+        private void destroy() {
+            process.destroy();
+            portFile.delete();
+        }
+    }
+
+    /**
+     * Gets an idle worker with the given settings, or starts a new one.
+     * The worker needs to be given back with {@link #release(Worker)} or {@link #discard(Worker)}.
+     *
+     * @param java
+     *      the java launcher to run the worker with.
+     * @param jvmArgs
+     *      arguments to the JVM, such as the heap size.
+     */
+    Worker acquire(String java, List<String> jvmArgs, List<String> classpath) throws IOException {
+        String key = java+' '+jvmArgs+' '+classpath;
+        synchronized (this) {
+            LinkedList<Worker> list = idle.get(key);
+            while (list!=null && !list.isEmpty()) {
+                Worker w = list.removeFirst();
+                if (w.isAlive())
+                    return w;
+                discard(w);
+            }
+        }
+        return start(key, java, jvmArgs, classpath);
+    }
+
+    private Worker start(String key, String java, List<String> jvmArgs, List<String> classpath) throws IOException {
+        File portFile = File.createTempFile("stapler-worker", ".port");
+        portFile.delete();  // the worker creates it once it's ready
+        new File(portFile.getPath()+".log").deleteOnExit();
+
+        Process p = CompileServerClient.launch(java, jvmArgs, classpath, portFile, IDLE_TIMEOUT);
+        // the worker writes to its own log file
+        p.getInputStream().close();
+        p.getErrorStream().close();
+        p.getOutputStream().close();
+
+        Worker w = new Worker(key, p, portFile);
+        synchronized (this) {
+            workers.add(w);
+        }
+        try {
+            if (!CompileServerClient.waitForPortFile(portFile) || !w.isAlive())
+                throw new IOException("Compiler worker failed to start. See "+portFile+".log");
+            String[] portAndSecret = CompileServerClient.readPortFile(portFile);
+            w.port = Integer.parseInt(portAndSecret[0]);
+            w.secret = portAndSecret[1];
+            return w;
+        } catch (IOException e) {
+            discard(w);
+            throw e;
+        } catch (NumberFormatException e) {
+            discard(w);
+            throw (IOException)new IOException("Corrupted port file "+portFile).initCause(e);
+        }
+    }
+
+    /**
+     * Puts the worker back to the pool once the compilation is done.
+     */
+    synchronized void release(Worker w) {
+        LinkedList<Worker> list = idle.get(w.key);
+        if (list==null)
+            idle.put(w.key,list=new LinkedList<Worker>());
+        list.addFirst(w);
+        while (list.size()>MAX_IDLE_WORKERS)
+            discard(list.removeLast());
+    }
+
+    /**
+     * Kills the worker, for example because it stopped responding.
+     */
+    synchronized void discard(Worker w) {
+        workers.remove(w);
+        w.destroy();
+    }
+
+    private synchronized void shutdown() {
+        for (Worker w : workers)
+            w.destroy();
+        workers.clear();
+        idle.clear();
+    }
+
+    /**
+     * Workers exit by themselves after this many milliseconds of inactivity, in case
+     * this JVM dies without getting a chance to kill them.
+     */
+    private static final long IDLE_TIMEOUT = 10*60*1000;
+
+    private static final int MAX_IDLE_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    static final CompilerWorkerPool INSTANCE = new CompilerWorkerPool();
+}
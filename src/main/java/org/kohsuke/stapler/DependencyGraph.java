@@ -0,0 +1,486 @@
+package org.kohsuke.stapler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class-level dependency graph of the compiled classes, used to find out which sources
+ * need to be recompiled along with the modified ones.
+ *
+ * <p>
+ * The graph is built from the constant pool of the class files that javac produced. Every class
+ * or type descriptor mentioned there is a dependency, which catches method signatures, field types,
+ * annotations and generic signatures as well as the code. Only the dependencies on the classes
+ * known to the graph are kept, so references to the JDK and libraries don't take up any space.
+ *
+ * <p>
+ * Compile-time constants are inlined by javac and leave no trace in the constant pool, so
+ * a change to the value of a constant is not propagated.
+ *
+ * <p>
+ * Classes are identified by their internal names ("org/acme/Foo$Bar"), and sources by their path
+ * relative to the source root ("org/acme/Foo.java").
+ */
+final class DependencyGraph {
+    private final File file;
+
+    private final Map<String,ClassInfo> classes = new HashMap<String,ClassInfo>();
+
+    private DependencyGraph(File file) {
+        this.file = file;
+    }
+
+    private static final class ClassInfo {
+        /**
+         * Source file this class was compiled from.
+         */
+        final String source;
+        /**
+         * Internal names of the classes that this class refers to.
+         */
+        final Set<String> references;
+        /**
+         * Internal names of the superclass and the interfaces of this class.
+         */
+        final Set<String> supertypes;
+
+        ClassInfo(String source, Set<String> references, Set<String> supertypes) {
+            this.source = source;
+            this.references = references;
+            this.supertypes = supertypes;
+        }
+    }
+
+    public boolean isEmpty() {
+        return classes.isEmpty();
+    }
+
+    /**
+     * Finds the sources that need to be recompiled because they depend on the given sources.
+     *
+     * <p>
+     * Sources that the graph knows about but that no longer exist are also considered modified,
+     * so that the classes that referred to them get a chance to report errors.
+     *
+     * <p>
+     * The subtypes of the classes that get recompiled are recompiled as well, all the way down,
+     * since a change to a class can change what its subclasses inherit without them referring
+     * to the modified class at all.
+     *
+     * @param modified
+     *      relative paths of the modified sources.
+     * @param sourceRoots
+     *      used to check which sources still exist.
+     * @return
+     *      relative paths of the dependent sources, not including the given ones.
+     */
+    public Set<String> findDependents(Collection<String> modified, List<File> sourceRoots) {
+        Set<String> modifiedSources = new HashSet<String>(modified);
+        Set<String> sources = new HashSet<String>();
+        for (ClassInfo ci : classes.values())
+            sources.add(ci.source);
+        for (String s : sources)
+            if (resolve(s,sourceRoots)==null)
+                modifiedSources.add(s);
+
+        Set<String> modifiedClasses = new HashSet<String>();
+        for (Map.Entry<String,ClassInfo> e : classes.entrySet())
+            if (modifiedSources.contains(e.getValue().source))
+                modifiedClasses.add(e.getKey());
+
+        Set<String> dependents = new LinkedHashSet<String>();
+        for (ClassInfo ci : classes.values()) {
+            if (modifiedSources.contains(ci.source) || dependents.contains(ci.source))
+                continue;
+            for (String ref : ci.references) {
+                if (modifiedClasses.contains(ref)) {
+                    dependents.add(ci.source);
+                    break;
+                }
+            }
+        }
+
+        Set<String> recompiled = new HashSet<String>(modifiedSources);
+        recompiled.addAll(dependents);
+        boolean changed;
+        do {
+            changed = false;
+            for (ClassInfo ci : classes.values()) {
+                if (recompiled.contains(ci.source))
+                    continue;
+                for (String st : ci.supertypes) {
+                    ClassInfo sup = classes.get(st);
+                    if (sup!=null && recompiled.contains(sup.source)) {
+                        recompiled.add(ci.source);
+                        dependents.add(ci.source);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        } while (changed);
+
+        return dependents;
+    }
+
+    /**
+     * Finds the sources that the given sources refer to.
+     *
+     * @param sources
+     *      relative paths of the sources.
+     * @return
+     *      relative paths of the referenced sources, keyed by the relative path of the referring source.
+     *      Sources that the graph doesn't know about are not included.
+     */
+    public Map<String,Set<String>> getReferencedSources(Collection<String> sources) {
+        Set<String> wanted = new HashSet<String>(sources);
+        Map<String,Set<String>> r = new HashMap<String,Set<String>>();
+        for (ClassInfo ci : classes.values()) {
+            if (!wanted.contains(ci.source))
+                continue;
+            Set<String> refs = r.get(ci.source);
+            if (refs==null)
+                r.put(ci.source,refs=new HashSet<String>());
+            for (String ref : ci.references) {
+                ClassInfo target = classes.get(ref);
+                if (target!=null && !target.source.equals(ci.source))
+                    refs.add(target.source);
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Records the class files produced by a compilation.
+     *
+     * @param compiledSources
+     *      relative paths of the sources that were compiled. Whatever the graph knew about
+     *      the classes from these sources is discarded first.
+     * @param classFiles
+     *      class files that the compilation produced.
+     */
+    public void update(Collection<String> compiledSources, Collection<File> classFiles, List<File> sourceRoots) throws IOException {
+        Set<String> compiled = new HashSet<String>(compiledSources);
+        for (Iterator<ClassInfo> itr = classes.values().iterator(); itr.hasNext(); ) {
+            String source = itr.next().source;
+            if (compiled.contains(source) || resolve(source,sourceRoots)==null)
+                itr.remove();
+        }
+
+        for (File classFile : classFiles) {
+            ClassFileParser p = new ClassFileParser(classFile);
+            classes.put(p.className, new ClassInfo(p.getSourcePath(), p.references, p.supertypes));
+        }
+
+        // only keep the references among the classes we know
+        for (ClassInfo ci : classes.values()) {
+            ci.references.retainAll(classes.keySet());
+            ci.supertypes.retainAll(classes.keySet());
+        }
+    }
+
+    /**
+     * Finds the source file of the given relative path.
+     */
+    public static File resolve(String relativePath, List<File> sourceRoots) {
+        for (File root : sourceRoots) {
+            File f = new File(root,relativePath);
+            if (f.exists())
+                return f;
+        }
+        return null;
+    }
+
+    /**
+     * Computes the path of the given source file relative to the source root it's in.
+     *
+     * @return null if the file isn't in any of the source roots.
+     */
+    public static String relativize(File source, List<File> sourceRoots) {
+        String path = source.getAbsolutePath();
+        for (File root : sourceRoots) {
+            String prefix = root.getAbsolutePath()+File.separatorChar;
+            if (path.startsWith(prefix))
+                return path.substring(prefix.length()).replace(File.separatorChar,'/');
+        }
+        return null;
+    }
+
+    /**
+     * Determines the file in which the graph for the given output directory is kept.
+     */
+    public static File getFile(File buildDirectory, File outputDirectory) {
+        return new File(SourceIndex.getStateDirectory(buildDirectory, outputDirectory), "dependencies.idx");
+    }
+
+    /**
+     * Deletes the graph from the disk, so that the next compilation starts from scratch.
+     */
+    public void delete() {
+        classes.clear();
+        file.delete();
+    }
+
+    public void save() throws IOException {
+        file.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(VERSION);
+
+            // class names are written once, and referenced by their indices
+            List<String> names = new ArrayList<String>(classes.keySet());
+            Map<String,Integer> indices = new HashMap<String,Integer>();
+            out.writeInt(names.size());
+            for (String name : names) {
+                indices.put(name,indices.size());
+                out.writeUTF(name);
+            }
+
+            for (String name : names) {
+                ClassInfo ci = classes.get(name);
+                out.writeUTF(ci.source);
+                out.writeInt(ci.references.size());
+                for (String ref : ci.references)
+                    out.writeInt(indices.get(ref));
+                out.writeInt(ci.supertypes.size());
+                for (String st : ci.supertypes)
+                    out.writeInt(indices.get(st));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads the graph from the disk.
+     *
+     * @return
+     *      always non-null. If the file doesn't exist or is corrupted, an empty graph is returned.
+     */
+    public static DependencyGraph load(File file) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return new DependencyGraph(file);
+        }
+        try {
+            DependencyGraph g = new DependencyGraph(file);
+            if (in.readInt()!=VERSION)
+                return g;
+
+            String[] names = new String[in.readInt()];
+            for (int i=0; i<names.length; i++)
+                names[i] = in.readUTF();
+
+            for (String name : names) {
+                String source = in.readUTF();
+                int n = in.readInt();
+                Set<String> refs = new HashSet<String>(n*2);
+                for (int i=0; i<n; i++)
+                    refs.add(names[in.readInt()]);
+                n = in.readInt();
+                Set<String> supertypes = new HashSet<String>(n*2);
+                for (int i=0; i<n; i++)
+                    supertypes.add(names[in.readInt()]);
+                g.classes.put(name, new ClassInfo(source,refs,supertypes));
+            }
+            return g;
+        } catch (IOException e) {
+            // corrupted. start over
+            return new DependencyGraph(file);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return new DependencyGraph(file);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the constant pool and the source file attribute of a class file.
+     */
+    private static final class ClassFileParser {
+        String className;
+        String sourceFile;
+        final Set<String> references = new HashSet<String>();
+        final Set<String> supertypes = new HashSet<String>();
+
+        ClassFileParser(File classFile) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(classFile)));
+            try {
+                parse(in);
+            } catch (IOException e) {
+                throw (IOException)new IOException("Failed to parse "+classFile).initCause(e);
+            } finally {
+                in.close();
+            }
+        }
+
+        private void parse(DataInputStream in) throws IOException {
+            if (in.readInt()!=0xCAFEBABE)
+                throw new IOException("Not a class file");
+            in.readUnsignedShort(); // minor
+            in.readUnsignedShort(); // major
+
+            int n = in.readUnsignedShort();
+            String[] utf8 = new String[n];
+            int[] classNames = new int[n];   // for Class constants, the index of its name
+            for (int i=1; i<n; i++) {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                case 1:     // Utf8
+                    utf8[i] = in.readUTF();
+                    break;
+                case 7:     // Class
+                    classNames[i] = in.readUnsignedShort();
+                    break;
+                case 8:     // String
+                case 16:    // MethodType
+                case 19:    // Module
+                case 20:    // Package
+                    in.readUnsignedShort();
+                    break;
+                case 15:    // MethodHandle
+                    in.readUnsignedByte();
+                    in.readUnsignedShort();
+                    break;
+                case 3:     // Integer
+                case 4:     // Float
+                case 9:     // Fieldref
+                case 10:    // Methodref
+                case 11:    // InterfaceMethodref
+                case 12:    // NameAndType
+                case 17:    // Dynamic
+                case 18:    // InvokeDynamic
+                    in.readInt();
+                    break;
+                case 5:     // Long
+                case 6:     // Double
+                    in.readLong();
+                    i++;    // takes up two slots
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag "+tag);
+                }
+            }
+
+            for (int i=1; i<n; i++) {
+                if (classNames[i]!=0) {
+                    String name = utf8[classNames[i]];
+                    if (name.startsWith("["))
+                        addDescriptor(name);    // array class
+                    else
+                        references.add(name);
+                } else
+                if (utf8[i]!=null && utf8[i].length()>0 && DESCRIPTOR_START.indexOf(utf8[i].charAt(0))>=0) {
+                    // possibly a descriptor or a signature
+                    addDescriptor(utf8[i]);
+                }
+            }
+
+            in.readUnsignedShort(); // access flags
+            className = utf8[classNames[in.readUnsignedShort()]];
+            references.remove(className);
+
+            int superClass = in.readUnsignedShort();
+            if (superClass!=0)  // only java/lang/Object has none
+                supertypes.add(utf8[classNames[superClass]]);
+            int interfaces = in.readUnsignedShort();
+            for (int i=0; i<interfaces; i++)
+                supertypes.add(utf8[classNames[in.readUnsignedShort()]]);
+            skipMembers(in);    // fields
+            skipMembers(in);    // methods
+
+            int attributes = in.readUnsignedShort();
+            for (int i=0; i<attributes; i++) {
+                String name = utf8[in.readUnsignedShort()];
+                int len = in.readInt();
+                if ("SourceFile".equals(name)) {
+                    sourceFile = utf8[in.readUnsignedShort()];
+                    skip(in, len-2);
+                } else {
+                    skip(in, len);
+                }
+            }
+        }
+
+        /**
+         * Picks up class names from a field/method descriptor or a generic signature,
+         * where they appear as "Lorg/acme/Foo;" or "Lorg/acme/Foo<...>;".
+         *
+         * <p>
+         * This errs on the side of finding too much, for example in strings that aren't
+         * descriptors at all, which is harmless since only references to the known classes are kept.
+         */
+        private void addDescriptor(String s) {
+            int idx = 0;
+            while ((idx=s.indexOf('L',idx))>=0) {
+                int end = idx+1;
+                while (end<s.length() && ";<:".indexOf(s.charAt(end))<0)
+                    end++;
+                if (end==s.length())
+                    return;
+                // ':' means we were looking at the name of a type parameter, like "<LT:Ljava/lang/Object;>"
+                if (s.charAt(end)!=':' && end>idx+1)
+                    references.add(s.substring(idx+1,end));
+                idx = end;
+            }
+        }
+
+        private void skipMembers(DataInputStream in) throws IOException {
+            int n = in.readUnsignedShort();
+            for (int i=0; i<n; i++) {
+                skip(in,6); // access flags, name, descriptor
+                int attributes = in.readUnsignedShort();
+                for (int j=0; j<attributes; j++) {
+                    in.readUnsignedShort();
+                    skip(in,in.readInt());
+                }
+            }
+        }
+
+        private void skip(DataInputStream in, int len) throws IOException {
+            while (len>0) {
+                int n = in.skipBytes(len);
+                if (n<=0)   throw new IOException("Unexpected end of class file");
+                len -= n;
+            }
+        }
+
+        /**
+         * Path of the source file relative to the source root.
+         */
+        String getSourcePath() {
+            int slash = className.lastIndexOf('/');
+            String pkg = slash<0 ? "" : className.substring(0,slash+1);
+            if (sourceFile!=null)
+                return pkg+sourceFile;
+
+            // compiled without debug information. guess from the outermost class name
+            String outer = className;
+            int dollar = outer.indexOf('$',slash+1);
+            if (dollar>0)   outer = outer.substring(0,dollar);
+            return outer+".java";
+        }
+
+        private static final String DESCRIPTOR_START = "(L[<";
+    }
+
+    private static final int VERSION = 1;
+}
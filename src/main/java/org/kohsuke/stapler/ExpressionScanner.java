@@ -0,0 +1,189 @@
+package org.kohsuke.stapler;
+
+/**
+ * Finds the property references in the text of a Jelly script, as it's handed over by the SAX parser.
+ *
+ * <p>
+ * A property is referenced either as <tt>${%name}</tt> or <tt>${%name(args...)}</tt>, or from within
+ * any other expression as a string literal that starts with '%', such as <tt>${h.foo('%name')}</tt>.
+ * The text is fed one chunk at a time, so that nothing needs to be copied before it's scanned,
+ * and an expression can span multiple chunks. Braces nest within an expression, and braces and
+ * quotes inside string literals don't count.
+ *
+ * <p>
+ * Only the property names themselves are ever turned into strings.
+ */
+abstract class ExpressionScanner {
+    private static final int TEXT = 0;
+    /** Saw '$' in the text. */
+    private static final int DOLLAR = 1;
+    /** Saw "${". */
+    private static final int EXPRESSION_START = 2;
+    /** In the name of "${%name...". */
+    private static final int PROPERTY = 3;
+    /** In an expression, outside string literals. */
+    private static final int EXPRESSION = 4;
+    /** Right after the opening quote of a string literal. */
+    private static final int STRING_START = 5;
+    /** In the name of a string literal that starts with '%'. */
+    private static final int LITERAL = 6;
+    /** In any other part of a string literal. */
+    private static final int STRING = 7;
+
+    private int state = TEXT;
+
+    /**
+     * Nesting level of braces in the current expression.
+     */
+    private int depth;
+
+    /**
+     * Whether string literals in the current expression can reference properties.
+     * They can't in the arguments of "${%name(args...)}".
+     */
+    private boolean literals;
+
+    /**
+     * Quote character of the current string literal.
+     */
+    private char quote;
+
+    /**
+     * The previous character was a backslash in a string literal.
+     */
+    private boolean escaped;
+
+    /**
+     * Name of the property being read. Reused for all the properties.
+     */
+    private final StringBuilder name = new StringBuilder();
+
+    /**
+     * Called for each property reference found.
+     */
+    protected abstract void onProperty(String name);
+
+    public void scan(char[] ch, int start, int length) {
+        for (int i=start; i<start+length; i++)
+            scan(ch[i]);
+    }
+
+    public void scan(String s) {
+        for (int i=0; i<s.length(); i++)
+            scan(s.charAt(i));
+    }
+
+    /**
+     * Marks the end of a run of text, such as an attribute value, or the text up to the next tag.
+     *
+     * @return
+     *      false if the text ended in the middle of an expression.
+     */
+    public boolean end() {
+        boolean complete = state==TEXT || state==DOLLAR;
+        state = TEXT;
+        name.setLength(0);
+        return complete;
+    }
+
+    private void scan(char c) {
+        switch (state) {
+        case TEXT:
+            if (c=='$')
+                state = DOLLAR;
+            return;
+
+        case DOLLAR:
+            if (c=='{')
+                state = EXPRESSION_START;
+            else
+            if (c!='$')
+                state = TEXT;
+            return;
+
+        case EXPRESSION_START:
+            depth = 1;
+            literals = c!='%';
+            if (c=='%') {
+                state = PROPERTY;
+                return;
+            }
+            state = EXPRESSION;
+            expression(c);
+            return;
+
+        case PROPERTY:
+            if (c=='(' || c=='}') {
+                // if parameters follow, the name ends there
+                flush();
+                state = EXPRESSION;
+                expression(c);
+            } else {
+                name.append(c);
+            }
+            return;
+
+        case EXPRESSION:
+            expression(c);
+            return;
+
+        case STRING_START:
+            if (c=='%' && literals) {
+                state = LITERAL;
+                return;
+            }
+            state = STRING;
+            string(c);
+            return;
+
+        case LITERAL:
+            if (c=='(' || c==quote) {
+                flush();
+                state = STRING;
+                string(c);
+            } else {
+                name.append(c);
+            }
+            return;
+
+        case STRING:
+            string(c);
+            return;
+        }
+    }
+
+    private void expression(char c) {
+        switch (c) {
+        case '{':
+            depth++;
+            break;
+        case '}':
+            if (--depth==0)
+                state = TEXT;
+            break;
+        case '\'':
+        case '"':
+            quote = c;
+            escaped = false;
+            state = STRING_START;
+            break;
+        }
+    }
+
+    private void string(char c) {
+        if (escaped)
+            escaped = false;
+        else
+        if (c=='\\')
+            escaped = true;
+        else
+        if (c==quote)
+            state = EXPRESSION;
+    }
+
+    private void flush() {
+        if (name.length()>0)
+            onProperty(name.toString());
+        name.setLength(0);
+    }
+}
@@ -0,0 +1,153 @@
+package org.kohsuke.stapler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Keeps classpath jar files open along with the index of their entries, so that the compilations
+ * in the same JVM, such as the modules of a reactor build, don't have to reopen the same jars and
+ * re-read their central directories over and over.
+ *
+ * <p>
+ * Jars are identified by their path, timestamp, and size, so a jar that gets rebuilt
+ * in the middle of the build is reopened. The number of open jars is bounded, and the
+ * least recently used ones are closed once no compilation is using them.
+ */
+final class JarIndexCache {
+    private final int capacity;
+
+    /**
+     * Keyed by the absolute path, in the access order.
+     */
+    private final LinkedHashMap<String,JarIndex> jars = new LinkedHashMap<String,JarIndex>(16,0.75f,true);
+
+    JarIndexCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Index of a single jar file.
+     */
+    static final class JarIndex {
+        final File file;
+        final ZipFile zip;
+        private final long lastModified, length;
+
+        /**
+         * Entry names keyed by the package name, such as "org.acme".
+         */
+        private final Map<String,List<ZipEntry>> packages = new HashMap<String,List<ZipEntry>>();
+
+        /**
+         * Number of compilations using this jar.
+         */
+        private int refCount;
+        private boolean evicted;
+
+        private JarIndex(File file) throws IOException {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.length = file.length();
+            this.zip = new ZipFile(file);
+
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry ze = e.nextElement();
+                if (ze.isDirectory())   continue;
+                String name = ze.getName();
+                int idx = name.lastIndexOf('/');
+                String pkg = idx<0 ? "" : name.substring(0,idx).replace('/','.');
+                List<ZipEntry> entries = packages.get(pkg);
+                if (entries==null)
+                    packages.put(pkg,entries=new ArrayList<ZipEntry>());
+                entries.add(ze);
+            }
+        }
+
+        private boolean isUpToDate() {
+            return file.lastModified()==lastModified && file.length()==length;
+        }
+
+        /**
+         * Lists the entries in the given package.
+         */
+        List<ZipEntry> list(String packageName, boolean recurse) {
+            if (!recurse) {
+                List<ZipEntry> entries = packages.get(packageName);
+                return entries!=null ? entries : Collections.<ZipEntry>emptyList();
+            }
+
+            List<ZipEntry> r = new ArrayList<ZipEntry>();
+            String prefix = packageName+'.';
+            for (Map.Entry<String,List<ZipEntry>> e : packages.entrySet())
+                if (packageName.length()==0 || e.getKey().equals(packageName) || e.getKey().startsWith(prefix))
+                    r.addAll(e.getValue());
+            return r;
+        }
+
+        private void close() {
+            try {
+                zip.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Gets the index of the given jar file, opening it if necessary.
+     * Every call needs to be matched by {@link #release(JarIndex)}.
+     */
+    synchronized JarIndex acquire(File jar) throws IOException {
+        String key = jar.getAbsolutePath();
+        JarIndex index = jars.get(key);
+        if (index!=null && !index.isUpToDate()) {
+            jars.remove(key);
+            evict(index);
+            index = null;
+        }
+        if (index==null) {
+            index = new JarIndex(jar);
+            jars.put(key,index);
+        }
+        index.refCount++;
+
+        // make room, starting from the least recently used
+        for (Iterator<JarIndex> itr = jars.values().iterator(); jars.size()>capacity && itr.hasNext(); ) {
+            JarIndex j = itr.next();
+            if (j!=index) {
+                itr.remove();
+                evict(j);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Indicates that a compilation is done with the jar.
+     */
+    synchronized void release(JarIndex index) {
+        index.refCount--;
+        if (index.evicted && index.refCount==0)
+            index.close();
+    }
+
+    private void evict(JarIndex index) {
+        index.evicted = true;
+        if (index.refCount==0)
+            index.close();
+    }
+
+    /**
+     * The cache shared by all the compilations in this JVM.
+     */
+    static final JarIndexCache INSTANCE = new JarIndexCache(Integer.getInteger("stapler.jarIndexCacheSize", 512));
+}
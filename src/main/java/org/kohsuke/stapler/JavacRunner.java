@@ -0,0 +1,103 @@
+package org.kohsuke.stapler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.processing.Processor;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import org.kohsuke.stapler.processor.StaplerAnnotationProcessor;
+
+/**
+ * Runs javac with the Stapler annotation processors through the <tt>javax.tools</tt> API.
+ *
+ * <p>
+ * This is shared between {@link AptCompiler} and {@link CompileServer}, so it must not
+ * depend on Maven or Plexus.
+ *
+ * @see AptCompiler#compileInProcess(List, List, StreamingDiagnosticListener, CompileMetrics)
+ */
+final class JavacRunner {
+    private JavacRunner() {}
+
+    /**
+     * Compiles the given source files.
+     *
+     * <p>
+     * The jar files on the classpath are served from {@link JarIndexCache#INSTANCE}, so
+     * they stay open for the subsequent compilations in the same JVM.
+     *
+     * @param diagnostics
+     *      receives the diagnostics as javac reports them. If it throws {@link CompilationAborted},
+     *      the compilation stops there and fails.
+     * @param out
+     *      receives the rest of the compiler output.
+     * @param metrics
+     *      receives the time spent in the javac phases and the annotation processing rounds. Can be null.
+     * @return
+     *      true if the compilation was successful.
+     */
+    static boolean run(JavaCompiler compiler, DiagnosticListener<? super JavaFileObject> diagnostics,
+                       Writer out, List<String> options, List<String> sourceFiles, CompileMetrics metrics) throws IOException {
+        options = new ArrayList<String>(options);
+        List<File> classpath = CachingFileManager.extractClasspath(options);
+        StandardJavaFileManager standardFileManager = compiler.getStandardFileManager(diagnostics, null, null);
+        CachingFileManager fileManager = new CachingFileManager(standardFileManager, classpath, JarIndexCache.INSTANCE);
+
+        try {
+            Iterable<? extends JavaFileObject> compilationUnits = standardFileManager.
+                getJavaFileObjectsFromStrings(sourceFiles);
+            JavaCompiler.CompilationTask task = compiler.getTask(out, fileManager, diagnostics,
+                options, null, compilationUnits);
+            StaplerAnnotationProcessor processor = new StaplerAnnotationProcessor();
+            if (metrics==null) {
+                task.setProcessors(Collections.<Processor>singletonList(processor));
+            } else {
+                task.setProcessors(Collections.<Processor>singletonList(new TimedProcessor(processor, metrics)));
+                try {
+                    PhaseTimer.attach(task, metrics);
+                } catch (LinkageError e) {
+                    // the javac API isn't visible to us, so the phases go unmeasured
+                }
+            }
+            return task.call();
+        } catch (RuntimeException e) {
+            // javac wraps the exceptions thrown from the listener
+            for (Throwable t=e; t!=null; t=t.getCause())
+                if (t instanceof CompilationAborted)
+                    return false;
+            throw e;
+        } finally {
+            fileManager.close();
+        }
+    }
+
+    /**
+     * Figures out the path of the file that a diagnostic is reported against.
+     *
+     * @return null if the diagnostic isn't specific to a file.
+     */
+    static String getPath(JavaFileObject source) {
+        if (source==null)
+            return null;
+        if ("file".equals(source.toUri().getScheme()))
+            return new File(source.toUri()).getPath();
+        return source.getName();
+    }
+
+    /**
+     * Thrown from a {@link DiagnosticListener} to stop the compilation.
+     */
+    static final class CompilationAborted extends RuntimeException {
+        CompilationAborted() {
+            super("Aborted on the first error");
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+}
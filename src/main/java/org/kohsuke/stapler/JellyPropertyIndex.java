@@ -0,0 +1,211 @@
+package org.kohsuke.stapler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent record of the property names that each Jelly script uses, so that the l10n goal
+ * only needs to parse the scripts that changed since the last run.
+ *
+ * <p>
+ * Like {@link SourceIndex}, a script is identified by its path, and is considered unchanged
+ * if its size and timestamp are the same as before, or if they aren't but the MD5 digest of its
+ * contents is. Scripts that were modified right around the time the index was taken are always
+ * digested. Scripts that are gone are dropped when the index is saved.
+ *
+ * <p>
+ * {@link #lookup(File)} may be called from multiple threads.
+ */
+final class JellyPropertyIndex {
+    private final File indexFile;
+
+    /**
+     * Scripts as of the last run.
+     * Not modified after the index is loaded, so it can be read without locking.
+     */
+    private final Map<File,Entry> previous = new HashMap<File,Entry>();
+
+    /**
+     * Scripts looked up in this run, which is what gets saved.
+     */
+    private final Map<File,Entry> current = new HashMap<File,Entry>();
+
+    /**
+     * When the file system was examined for {@link #previous}.
+     */
+    private long previousTimestamp;
+
+    /**
+     * When the file system is examined for {@link #current}.
+     */
+    private final long timestamp = System.currentTimeMillis();
+
+    private JellyPropertyIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    static final class Entry {
+        final long size;
+        final long lastModified;
+        final byte[] digest;
+        /**
+         * Property names used in the script, in the order they appear.
+         * Null until the script is parsed.
+         */
+        Set<String> properties;
+
+        Entry(long size, long lastModified, byte[] digest) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Looks up the script.
+     *
+     * @return
+     *      always non-null. If the script hasn't changed since the last run, its properties
+     *      are filled in. Otherwise the caller needs to parse the script and set them.
+     */
+    public Entry lookup(File script) throws IOException {
+        script = script.getAbsoluteFile();
+        Entry old = previous.get(script);
+
+        // stat before reading, so that a modification while we are at it is seen next time
+        long t = script.lastModified();
+        long size = script.length();
+        Entry e;
+        if (old!=null && t==old.lastModified && size==old.size && !isRacy(t)) {
+            e = old;
+        } else {
+            e = new Entry(size,t,SourceIndex.digest(script));
+            if (old!=null && Arrays.equals(e.digest,old.digest))
+                e.properties = old.properties;
+        }
+
+        synchronized (current) {
+            current.put(script,e);
+        }
+        return e;
+    }
+
+    /**
+     * Timestamps this close to the time the last index was taken can't be trusted.
+     */
+    private boolean isRacy(long lastModified) {
+        return lastModified+RACY_WINDOW >= previousTimestamp;
+    }
+
+    /**
+     * Writes the scripts looked up in this run back to the disk.
+     */
+    public void save() throws IOException {
+        indexFile.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(VERSION);
+            out.writeLong(timestamp);
+
+            synchronized (current) {
+                int n=0;
+                for (Entry e : current.values())
+                    if (e.properties!=null)
+                        n++;
+                out.writeInt(n);
+
+                for (Map.Entry<File,Entry> s : current.entrySet()) {
+                    Entry e = s.getValue();
+                    if (e.properties==null)
+                        continue;   // failed to parse
+                    out.writeUTF(s.getKey().getPath());
+                    out.writeLong(e.size);
+                    out.writeLong(e.lastModified);
+                    out.write(e.digest);
+                    out.writeInt(e.properties.size());
+                    for (String p : e.properties)
+                        out.writeUTF(p);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads the index from the disk.
+     *
+     * @return
+     *      always non-null. If the index file doesn't exist or is corrupted, an empty index is returned.
+     */
+    public static JellyPropertyIndex load(File indexFile) throws IOException {
+        JellyPropertyIndex index = new JellyPropertyIndex(indexFile);
+
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        } catch (FileNotFoundException e) {
+            return index;
+        }
+        try {
+            if (in.readInt()!=VERSION)
+                return index;
+            index.previousTimestamp = in.readLong();
+
+            int n = in.readInt();
+            for (int i=0; i<n; i++) {
+                File f = new File(in.readUTF());
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte[] digest = new byte[DIGEST_LENGTH];
+                in.readFully(digest);
+                Entry e = new Entry(size,lastModified,digest);
+
+                int m = in.readInt();
+                Set<String> properties = new LinkedHashSet<String>();
+                for (int j=0; j<m; j++)
+                    properties.add(in.readUTF());
+                e.properties = Collections.unmodifiableSet(properties);
+                index.previous.put(f,e);
+            }
+            return index;
+        } catch (IOException e) {
+            // corrupted index. start over
+            return new JellyPropertyIndex(indexFile);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Determines where the index is kept.
+     */
+    public static File getIndexFile(File buildDirectory) {
+        return new File(buildDirectory,"stapler-incremental/jelly-properties.idx");
+    }
+
+    /**
+     * Bumped whenever the way the property names are found changes, so that the old ones get thrown away.
+     */
+    private static final int VERSION = 2;
+
+    private static final int DIGEST_LENGTH = 16;
+
+    /**
+     * Timestamps within this many milliseconds of the time the index was taken are considered racy.
+     */
+    private static final long RACY_WINDOW = 2000;
+}
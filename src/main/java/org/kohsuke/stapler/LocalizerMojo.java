@@ -37,16 +37,18 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Alias for <tt>stapler:l10n</tt> mojo. Left for compatibility.
@@ -56,13 +58,21 @@ import java.util.regex.Matcher;
  */
 public class LocalizerMojo extends AbstractMojo {
     /**
-     * The locale to generate properties for.
+     * The locale to generate properties for. Multiple locales can be given, separated by commas,
+     * as in <tt>-Dlocale=de,fr,ja</tt>.
      *
      * @parameter expression="${locale}"
-     * @required
      */
     protected String locale;
 
+    /**
+     * The locales to generate properties for, in addition to {@link #locale}.
+     * Each Jelly script is parsed only once, no matter how many locales there are.
+     *
+     * @parameter
+     */
+    protected String[] locales;
+
     /**
      * The maven project.
      *
@@ -72,146 +82,218 @@ public class LocalizerMojo extends AbstractMojo {
      */
     protected MavenProject project;
 
+    /**
+     * Number of threads to parse Jelly scripts with, or 0 to use one per processor.
+     * The property files are updated in the same order regardless, so the result doesn't
+     * depend on this.
+     *
+     * @parameter expression="${stapler.l10nThreads}" default-value="1"
+     */
+    protected int threads;
+
+    /**
+     * Set to false to parse every Jelly script on every run. Otherwise the property names
+     * used in each script are remembered under the build directory, and only the scripts
+     * that changed since the last run are parsed again.
+     *
+     * @parameter expression="${stapler.l10nIncremental}" default-value="true"
+     */
+    protected boolean incremental;
+
+    /**
+     * @parameter expression="${project.build.directory}"
+     * @readonly
+     */
+    protected File buildDirectory;
+
     public void execute() throws MojoExecutionException, MojoFailureException {
-        // create parser
-        try {
-            SAXParserFactory spf = SAXParserFactory.newInstance();
-            spf.setNamespaceAware(true);
-            parser = spf.newSAXParser();
-        } catch (SAXException e) {
-            throw new Error(e); // impossible
-        } catch (ParserConfigurationException e) {
-            throw new Error(e); // impossible
-        }
+        if(getLocales().isEmpty())
+            throw new MojoExecutionException("No locale is specified. Use -Dlocale=xx or the locales parameter");
 
+        List<File> scripts = new ArrayList<File>();
         for( Resource res : (List<Resource>)project.getResources() ) {
             File dir = new File(res.getDirectory());
-            processDirectory(dir);
+            findJelly(dir,scripts);
+        }
+
+        JellyPropertyIndex index = null;
+        if(incremental && buildDirectory!=null) {
+            File indexFile = JellyPropertyIndex.getIndexFile(buildDirectory);
+            try {
+                index = JellyPropertyIndex.load(indexFile);
+            } catch (IOException e) {
+                getLog().warn("Failed to read "+indexFile+". Parsing all Jelly scripts.",e);
+            }
+        }
+
+        processAll(scripts,index);
+
+        if(index!=null) {
+            try {
+                index.save();
+            } catch (IOException e) {
+                getLog().warn("Failed to save the Jelly property index",e);
+            }
         }
     }
 
-    private void process(File file) throws MojoExecutionException {
-        if(file.isDirectory())
-            processDirectory(file);
-        else
-        if(file.getName().endsWith(".jelly"))
-            processJelly(file);
+    private void processAll(List<File> scripts, final JellyPropertyIndex index) throws MojoExecutionException {
+        int n = threads>0 ? threads : Runtime.getRuntime().availableProcessors();
+        if(n<=1 || scripts.size()<=1) {
+            for (File script : scripts)
+                processJelly(script,findProperties(script,index));
+            return;
+        }
+
+        // parsing is where the time goes, so that's done concurrently,
+        // but the property files are updated one at a time, in the order the scripts were found
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(n,scripts.size()));
+        try {
+            List<Future<Set<String>>> futures = new ArrayList<Future<Set<String>>>(scripts.size());
+            for (final File script : scripts) {
+                futures.add(executor.submit(new Callable<Set<String>>() {
+                    public Set<String> call() throws MojoExecutionException {
+                        return findProperties(script,index);
+                    }
+                }));
+            }
+            for( int i=0; i<scripts.size(); i++ )
+                processJelly(scripts.get(i),futures.get(i).get());
+        } catch (InterruptedException e) {
+            throw new MojoExecutionException("Interrupted while parsing Jelly scripts",e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if(t instanceof MojoExecutionException)
+                throw (MojoExecutionException)t;
+            if(t instanceof RuntimeException)
+                throw (RuntimeException)t;
+            if(t instanceof Error)
+                throw (Error)t;
+            throw new MojoExecutionException("Failed to parse Jelly scripts",t);
+        } finally {
+            executor.shutdownNow();
+        }
     }
 
-    private void processDirectory(File dir) throws MojoExecutionException {
+    /**
+     * Lists up all the Jelly scripts in the given directory, recursively.
+     */
+    private void findJelly(File dir, List<File> scripts) {
         File[] children = dir.listFiles();
         if(children==null)  return;
-        for (File child : children)
-            process(child);
+        for (File child : children) {
+            if(child.isDirectory())
+                findJelly(child,scripts);
+            else
+            if(child.getName().endsWith(".jelly"))
+                scripts.add(child);
+        }
+    }
+
+    /**
+     * Finds all the property names used in the script, without parsing it if the index already knows them.
+     *
+     * @param index
+     *      null to always parse the script.
+     */
+    private Set<String> findProperties(File script, JellyPropertyIndex index) throws MojoExecutionException {
+        if(index==null)
+            return findAllProperties(script);
+
+        JellyPropertyIndex.Entry e;
+        try {
+            e = index.lookup(script);
+        } catch (IOException x) {
+            throw new MojoExecutionException("Failed to read "+script,x);
+        }
+        if(e.properties==null)
+            e.properties = Collections.unmodifiableSet(findAllProperties(script));
+        return e.properties;
+    }
+
+    /**
+     * Lists up all the locales to generate properties for, without duplicates.
+     */
+    private Set<String> getLocales() {
+        Set<String> r = new LinkedHashSet<String>();
+        if(locale!=null)
+            for (String l : locale.split(","))
+                if(l.trim().length()>0)
+                    r.add(l.trim());
+        if(locales!=null)
+            for (String l : locales)
+                if(l!=null && l.trim().length()>0)
+                    r.add(l.trim());
+        return r;
     }
 
-    private void processJelly(File file) throws MojoExecutionException {
-        Set<String> props = findAllProperties(file);
+    private void processJelly(File file, Set<String> props) throws MojoExecutionException {
         if(props.isEmpty())
             return; // nothing to generate here.
 
+        for (String locale : getLocales())
+            processJelly(file,new LinkedHashSet<String>(props),locale);
+    }
+
+    /**
+     * Updates the property file of the given locale.
+     *
+     * @param props
+     *      the property names used in the script. Modified by this method.
+     */
+    private void processJelly(File file, Set<String> props, String locale) throws MojoExecutionException {
         String fileName = file.getName();
         fileName=fileName.substring(0,fileName.length()-".jelly".length());
         fileName+='_'+locale+".properties";
         File resourceFile = new File(file.getParentFile(),fileName);
 
-        if(resourceFile.exists()) {
-            Properties resource;
-            try {
-                resource = new Properties(resourceFile);
-            } catch (IOException e) {
-                throw new MojoExecutionException("Failed to read "+resourceFile,e);
-            }
+        PropertyFile resource;
+        try {
+            resource = PropertyFile.load(resourceFile);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read "+resourceFile,e);
+        }
 
+        if(resource.exists()) {
             // find unnecessary properties = those which are present in the resource file but not in Jelly
-            HashSet<String> unnecessaries = new HashSet<String>((Set) resource.keySet());
+            HashSet<String> unnecessaries = new HashSet<String>(resource.keySet());
             unnecessaries.removeAll(props);
             for (String s : unnecessaries)
                 getLog().warn("Unused property "+s+" in "+resourceFile);
 
             // figure out missing properties
             props.removeAll(resource.keySet());
-
-            // add NL to the end if necessary
-            try {
-                // then add them to the end
-                RandomAccessFile f = new RandomAccessFile(resourceFile,"rw");
-                if(f.length()>0) {
-                    // add the terminating line end if needed
-                    f.seek(f.length()-1);
-                    int ch = f.read();
-                    if(!(ch=='\r' || ch=='\n'))
-                        f.write(System.getProperty("line.separator").getBytes());
-                }
-                f.close();
-            } catch (IOException e) {
-                throw new MojoExecutionException("Failed to write "+resourceFile,e);
-            }
         }
 
         if(props.isEmpty())
-            return; // no change to make
+            return; // no change to make, so leave the file alone
 
         getLog().info("Updating "+resourceFile);
 
         try {
-            // then add them to the end
-            RandomAccessFile f = new RandomAccessFile(resourceFile,"rw");
-            if(f.length()>0) {
-                // add the terminating line end if needed
-                f.seek(f.length()-1);
-                int ch = f.read();
-                if(!(ch=='\r' || ch=='\n'))
-                    f.write(System.getProperty("line.separator").getBytes());
-            }
-            f.close();
-            PrintWriter w = new PrintWriter(new FileWriter(resourceFile,true));
-            for (String p : props) {
-                w.println(escape(p)+"=");
-            }
-            w.close();
+            resource.append(props);
         } catch (IOException e) {
             throw new MojoExecutionException("Failed to write "+resourceFile,e);
         }
     }
 
-    /**
-     * Escapes the property key in the proper format.
-     */
-    private String escape(String key) {
-        StringBuilder buf = new StringBuilder(key.length());
-        for( int i=0; i<key.length(); i++ ) {
-            char ch = key.charAt(i);
-            switch (ch) {
-            case ' ':   buf.append("\\ ");break;
-            case '\t':  buf.append("\\t");break;
-            case '\n':  buf.append("\\n");break;
-            case '=':
-            case ':':
-            case '#':
-            case '!':
-                buf.append('\\').append(ch);
-                break;
-            default:
-                // TODO: non ASCII char escape
-                buf.append(ch);
-                break;
-            }
-        }
-        return buf.toString();
-    }
-
     /**
      * Parses a Jelly script and lists up all the property names used in there.
      */
-    private Set<String> findAllProperties(File file) throws MojoExecutionException {
+    /*package*/ Set<String> findAllProperties(File file) throws MojoExecutionException {
         getLog().debug("Parsing "+file);
         try {
             // we'd like to preserve order, but don't want duplicates
             final Set<String> properties = new LinkedHashSet<String>();
 
-            parser.parse(file,new DefaultHandler() {
-                private final StringBuilder buf = new StringBuilder();
+            final ExpressionScanner scanner = new ExpressionScanner() {
+                protected void onProperty(String name) {
+                    getLog().debug("Found "+name);
+                    properties.add(name);
+                }
+            };
+
+            parser.get().parse(file,new DefaultHandler() {
                 private Locator locator;
 
                 public void setDocumentLocator(Locator locator) {
@@ -219,66 +301,27 @@ public class LocalizerMojo extends AbstractMojo {
                 }
 
                 public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
-                    findExpressions();
+                    endText();
                     for( int i=0; i<attributes.getLength(); i++ ) {
-                        buf.append(attributes.getValue(i));
-                        findExpressions();
+                        scanner.scan(attributes.getValue(i));
+                        endText();
                     }
                 }
 
                 public void endElement(String uri, String localName, String qName) throws SAXException {
-                    findExpressions();
+                    endText();
                 }
 
                 public void characters(char ch[], int start, int length) throws SAXException {
-                    buf.append(ch,start,length);
+                    scanner.scan(ch,start,length);
                 }
 
                 /**
-                 * Find property references of the form "${%xxx(...)}" from {@link #buf}
-                 * and list up property names.
+                 * Expressions don't span across tags or attributes.
                  */
-                private void findExpressions() throws SAXParseException {
-                    int idx=-1;
-                    do {
-                        idx = buf.indexOf("${",idx+1);
-                        if(idx<0)   break;
-
-                        int end = buf.indexOf("}",idx);
-                        if(end==-1)
-                            throw new SAXParseException("Missing '}'",locator);
-
-                        onJexlExpression(buf.substring(idx+2,end));
-                    } while(true);
-
-                    buf.setLength(0);
-                }
-
-                /**
-                 * Found a JEXL expression.
-                 */
-                private void onJexlExpression(String exp) {
-                    if(exp.startsWith("%")) {
-                        getLog().debug("Found "+exp);
-                        exp = exp.substring(1);
-
-                        // if parameters follow, remove them
-                        int op = exp.indexOf('(');
-                        if(op>=0)   exp=exp.substring(0,op);
-                        properties.add(exp);
-                    } else {
-                        Matcher m = RESOURCE_LITERAL_STRING.matcher(exp);
-                        while(m.find()) {
-                            String literal = m.group();
-                            getLog().debug("Found "+literal);
-                            literal = literal.substring(2,literal.length()-1); // unquote and remove '%'
-
-                            // if parameters follow, remove them
-                            int op = literal.indexOf('(');
-                            if(op>=0)   literal=literal.substring(0,op);
-                            properties.add(literal);
-                        }
-                    }
+                private void endText() throws SAXParseException {
+                    if(!scanner.end())
+                        throw new SAXParseException("Missing '}'",locator);
                 }
             });
 
@@ -290,8 +333,21 @@ public class LocalizerMojo extends AbstractMojo {
         }
     }
 
-    SAXParser parser;
-
-    // "%...."    string literal that starts with '%'
-    private static final Pattern RESOURCE_LITERAL_STRING = Pattern.compile("(\"%[^\"]+\")|('%[^']+')");
+    /**
+     * {@link SAXParser} isn't thread-safe, so each thread gets its own.
+     */
+    private final ThreadLocal<SAXParser> parser = new ThreadLocal<SAXParser>() {
+        @Override
+        protected SAXParser initialValue() {
+            try {
+                SAXParserFactory spf = SAXParserFactory.newInstance();
+                spf.setNamespaceAware(true);
+                return spf.newSAXParser();
+            } catch (SAXException e) {
+                throw new Error(e); // impossible
+            } catch (ParserConfigurationException e) {
+                throw new Error(e); // impossible
+            }
+        }
+    };
 }
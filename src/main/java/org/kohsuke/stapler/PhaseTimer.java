@@ -0,0 +1,46 @@
+package org.kohsuke.stapler;
+
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import java.util.HashMap;
+import java.util.Map;
+import javax.tools.JavaCompiler.CompilationTask;
+
+/**
+ * Measures the time javac spends in each of its phases.
+ *
+ * <p>
+ * This uses the javac specific API from <tt>tools.jar</tt>, so it's kept in its own class, and
+ * {@link #attach(CompilationTask, CompileMetrics)} fails with {@link LinkageError} when the API is not available.
+ */
+final class PhaseTimer implements TaskListener {
+    private final CompileMetrics metrics;
+
+    /**
+     * When the phase in progress started.
+     */
+    private final Map<TaskEvent.Kind,Long> started = new HashMap<TaskEvent.Kind,Long>();
+
+    private PhaseTimer(CompileMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void started(TaskEvent e) {
+        started.put(e.getKind(), System.nanoTime());
+    }
+
+    public void finished(TaskEvent e) {
+        Long start = started.remove(e.getKind());
+        if (start!=null)
+            metrics.addPhaseTime(e.getKind().name(), System.nanoTime()-start);
+    }
+
+    /**
+     * Starts measuring the given task, if it's javac.
+     */
+    static void attach(CompilationTask task, CompileMetrics metrics) {
+        if (task instanceof JavacTask)
+            ((JavacTask)task).setTaskListener(new PhaseTimer(metrics));
+    }
+}
@@ -0,0 +1,187 @@
+package org.kohsuke.stapler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * A property file of a Jelly script, which the l10n goal adds the missing keys to.
+ *
+ * <p>
+ * The file is read once. The existing contents are kept byte for byte, and the new keys are
+ * appended with everything outside ASCII written as <tt>&#92;uXXXX</tt>, so the file stays valid
+ * whether it's in ISO-8859-1, as {@link java.util.Properties} expects, or in UTF-8. When reading
+ * the keys, a file that is valid UTF-8 is taken to be in UTF-8, and anything else in ISO-8859-1,
+ * the same way Java 9 reads resource bundles.
+ *
+ * <p>
+ * The file is replaced by writing a temporary file next to it and renaming it, so an interrupted
+ * build doesn't leave a truncated file behind.
+ */
+final class PropertyFile {
+    private final File file;
+
+    /**
+     * Current contents of the file, or null if the file doesn't exist.
+     */
+    private final byte[] contents;
+
+    private final java.util.Properties properties = new java.util.Properties();
+
+    private PropertyFile(File file, byte[] contents) throws IOException {
+        this.file = file;
+        this.contents = contents;
+        if (contents!=null)
+            properties.load(new StringReader(decode(contents)));
+    }
+
+    /**
+     * Reads the property file, if it exists.
+     */
+    public static PropertyFile load(File file) throws IOException {
+        InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            if (file.exists())
+                throw e;
+            return new PropertyFile(file,null);
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream((int)file.length());
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len=in.read(buf))>=0)
+                baos.write(buf,0,len);
+            return new PropertyFile(file,baos.toByteArray());
+        } finally {
+            in.close();
+        }
+    }
+
+    public boolean exists() {
+        return contents!=null;
+    }
+
+    /**
+     * Gets the keys in the file.
+     */
+    public Set<String> keySet() {
+        return properties.stringPropertyNames();
+    }
+
+    /**
+     * Adds the keys to the end of the file, with empty values, and writes it out.
+     */
+    public void append(Collection<String> keys) throws IOException {
+        String nl = getLineSeparator();
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        if (contents!=null) {
+            buf.write(contents);
+            // add the terminating line end if needed
+            if (contents.length>0 && !(contents[contents.length-1]=='\r' || contents[contents.length-1]=='\n'))
+                buf.write(ascii(nl));
+        }
+        for (String key : keys)
+            buf.write(ascii(escape(key)+'='+nl));
+
+        write(buf.toByteArray());
+    }
+
+    /**
+     * Uses the line separator that the file already uses, if any.
+     */
+    private String getLineSeparator() {
+        if (contents!=null) {
+            for (int i=0; i<contents.length; i++) {
+                if (contents[i]=='\n')
+                    return i>0 && contents[i-1]=='\r' ? "\r\n" : "\n";
+            }
+        }
+        return System.getProperty("line.separator");
+    }
+
+    private void write(byte[] data) throws IOException {
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            OutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                // Windows doesn't rename over an existing file
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("Failed to write "+file);
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Escapes the property key in the proper format.
+     */
+    static String escape(String key) {
+        StringBuilder buf = new StringBuilder(key.length());
+        for (int i=0; i<key.length(); i++) {
+            char ch = key.charAt(i);
+            switch (ch) {
+            case ' ':   buf.append("\\ ");break;
+            case '\t':  buf.append("\\t");break;
+            case '\n':  buf.append("\\n");break;
+            case '\r':  buf.append("\\r");break;
+            case '\f':  buf.append("\\f");break;
+            case '\\':
+            case '=':
+            case ':':
+            case '#':
+            case '!':
+                buf.append('\\').append(ch);
+                break;
+            default:
+                if (ch<0x20 || ch>0x7E)
+                    buf.append(String.format("\\u%04X",(int)ch));
+                else
+                    buf.append(ch);
+                break;
+            }
+        }
+        return buf.toString();
+    }
+
+    private static String decode(byte[] contents) {
+        try {
+            return Charset.forName("UTF-8").newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(contents)).toString();
+        } catch (CharacterCodingException e) {
+            return new String(contents,Charset.forName("ISO-8859-1"));
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e); // US-ASCII is always there
+        }
+    }
+}
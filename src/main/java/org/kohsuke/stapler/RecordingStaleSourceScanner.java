@@ -0,0 +1,91 @@
+package org.kohsuke.stapler;
+
+import org.codehaus.plexus.compiler.util.scan.AbstractSourceInclusionScanner;
+import org.codehaus.plexus.compiler.util.scan.InclusionScanException;
+import org.codehaus.plexus.compiler.util.scan.StaleSourceScanner;
+import org.codehaus.plexus.compiler.util.scan.mapping.SourceMapping;
+import org.codehaus.plexus.util.DirectoryScanner;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link StaleSourceScanner} that also remembers all the sources it has seen along the way.
+ *
+ * <p>
+ * A compiler that always needs the complete set of sources can then get them from
+ * {@link #getAllSources()}, instead of walking the source roots for the second time.
+ */
+public class RecordingStaleSourceScanner extends AbstractSourceInclusionScanner {
+    private final long lastUpdatedWithinMsecs;
+
+    private final Set sourceIncludes;
+
+    private final Set sourceExcludes;
+
+    private final Set<File> allSources = new HashSet<File>();
+
+    public RecordingStaleSourceScanner(long lastUpdatedWithinMsecs) {
+        this(lastUpdatedWithinMsecs, Collections.singleton("**/*"), Collections.EMPTY_SET);
+    }
+
+    public RecordingStaleSourceScanner(long lastUpdatedWithinMsecs, Set sourceIncludes, Set sourceExcludes) {
+        this.lastUpdatedWithinMsecs = lastUpdatedWithinMsecs;
+        this.sourceIncludes = sourceIncludes;
+        this.sourceExcludes = sourceExcludes;
+    }
+
+    /**
+     * Returns the stale sources under the given directory, and records all the sources
+     * that the source mappings apply to.
+     */
+    public Set getIncludedSources(File sourceDir, File targetDir) throws InclusionScanException {
+        List mappings = getSourceMappings();
+        if (mappings.isEmpty())
+            return Collections.EMPTY_SET;
+
+        DirectoryScanner ds = new DirectoryScanner();
+        ds.setFollowSymlinks(true);
+        ds.setBasedir(sourceDir);
+        ds.setIncludes((String[]) sourceIncludes.toArray(new String[sourceIncludes.size()]));
+        ds.setExcludes((String[]) sourceExcludes.toArray(new String[sourceExcludes.size()]));
+        ds.addDefaultExcludes();
+        ds.scan();
+
+        Set<File> staleSources = new HashSet<File>();
+        for (String path : ds.getIncludedFiles()) {
+            File sourceFile = new File(sourceDir, path);
+            long lastModified = -1;  // lazily computed, as most files don't map to anything
+
+            for (Iterator itr = mappings.iterator(); itr.hasNext(); ) {
+                SourceMapping mapping = (SourceMapping) itr.next();
+                Set targetFiles = mapping.getTargetFiles(targetDir, path);
+                if (targetFiles.isEmpty())
+                    continue;
+
+                allSources.add(sourceFile);
+                if (lastModified<0)
+                    lastModified = sourceFile.lastModified();
+
+                for (Iterator jtr = targetFiles.iterator(); jtr.hasNext(); ) {
+                    File targetFile = (File) jtr.next();
+                    long t = targetFile.lastModified();   // 0 if the file doesn't exist
+                    if (t==0 || t+lastUpdatedWithinMsecs < lastModified)
+                        staleSources.add(sourceFile);
+                }
+            }
+        }
+        return staleSources;
+    }
+
+    /**
+     * All the sources found so far, stale or not.
+     */
+    public Set<File> getAllSources() {
+        return allSources;
+    }
+}
@@ -0,0 +1,300 @@
+package org.kohsuke.stapler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent record of the source files that went into the last successful compilation.
+ *
+ * <p>
+ * For every source file, the size, the timestamp and the MD5 digest of its contents are recorded,
+ * together with the timestamps of all the directories under the source roots. As long as no directory
+ * timestamp changes, no file was added or removed, so {@link #findModifiedSources()} only needs to
+ * stat the files it already knows about, instead of walking the source roots and matching patterns.
+ * The digest is only computed for files whose size or timestamp changed, so that a "touch" doesn't
+ * cause a recompilation.
+ *
+ * <p>
+ * Files and directories that were modified right around the time the index was taken are "racy";
+ * with a coarse file system timestamp a later modification could go unnoticed, so those are always
+ * re-examined.
+ */
+final class SourceIndex {
+    private final File indexFile;
+
+    /**
+     * Identifies the configuration that the index is valid for, such as the source roots.
+     * If it changes, the index is discarded.
+     */
+    private final String fingerprint;
+
+    private final Map<File,Entry> sources = new HashMap<File,Entry>();
+
+    private final Map<File,Long> directories = new HashMap<File,Long>();
+
+    /**
+     * When the file system was examined to build this index.
+     */
+    private long timestamp;
+
+    private SourceIndex(File indexFile, String fingerprint) {
+        this.indexFile = indexFile;
+        this.fingerprint = fingerprint;
+    }
+
+    private static final class Entry {
+        long size;
+        long lastModified;
+        byte[] digest;
+    }
+
+    /**
+     * Is there anything in the index?
+     */
+    public boolean isEmpty() {
+        return sources.isEmpty();
+    }
+
+    /**
+     * Gets all the source files in the index.
+     */
+    public Set<File> getSourceFiles() {
+        return Collections.unmodifiableSet(sources.keySet());
+    }
+
+    /**
+     * Checks the recorded sources against the file system.
+     *
+     * @return
+     *      the set of source files whose contents changed since the index was taken,
+     *      or null if a file might have been added or removed, in which case the caller
+     *      needs to do the full scan and {@link #update(Collection, Collection)} the index.
+     */
+    public Set<File> findModifiedSources() throws IOException {
+        if (isEmpty())
+            return null;
+
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<File,Long> d : directories.entrySet()) {
+            long t = d.getKey().lastModified();
+            if (t==0 || t!=d.getValue() || isRacy(t))
+                return null;
+        }
+
+        Set<File> modified = new HashSet<File>();
+        for (Map.Entry<File,Entry> s : sources.entrySet()) {
+            File f = s.getKey();
+            Entry e = s.getValue();
+            long t = f.lastModified();
+            if (t==0)
+                return null;    // deleted
+            long size = f.length();
+            if (t==e.lastModified && size==e.size && !isRacy(t))
+                continue;
+
+            byte[] digest = digest(f);
+            if (!Arrays.equals(digest,e.digest))
+                modified.add(f);
+            e.size = size;
+            e.lastModified = t;
+            e.digest = digest;
+        }
+        timestamp = now;
+        return modified;
+    }
+
+    /**
+     * Rebuilds the index from the complete set of source files, as found by the full scan.
+     *
+     * @param sourceFiles
+     *      all the source files to be tracked.
+     * @param sourceRoots
+     *      the roots whose directory trees are recorded.
+     */
+    public void update(Collection<File> sourceFiles, Collection<String> sourceRoots) throws IOException {
+        long now = System.currentTimeMillis();
+
+        directories.clear();
+        for (String root : sourceRoots)
+            recordDirectory(new File(root));
+
+        Map<File,Entry> old = new HashMap<File,Entry>(sources);
+        sources.clear();
+        for (File f : sourceFiles) {
+            f = f.getAbsoluteFile();
+            Entry e = old.get(f);
+            long t = f.lastModified();
+            long size = f.length();
+            if (e==null || t!=e.lastModified || size!=e.size || isRacy(t)) {
+                e = new Entry();
+                e.size = size;
+                e.lastModified = t;
+                e.digest = digest(f);
+            }
+            sources.put(f,e);
+        }
+        timestamp = now;
+    }
+
+    private void recordDirectory(File dir) {
+        File[] children = dir.listFiles();
+        if (children==null)     return;
+        directories.put(dir.getAbsoluteFile(),dir.lastModified());
+        for (File child : children)
+            if (child.isDirectory())
+                recordDirectory(child);
+    }
+
+    /**
+     * Timestamps this close to the time the index was taken can't be trusted.
+     */
+    private boolean isRacy(long lastModified) {
+        return lastModified+RACY_WINDOW >= timestamp;
+    }
+
+    /**
+     * Writes the index back to the disk.
+     */
+    public void save() throws IOException {
+        indexFile.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+            out.writeLong(timestamp);
+
+            out.writeInt(directories.size());
+            for (Map.Entry<File,Long> d : directories.entrySet()) {
+                out.writeUTF(d.getKey().getPath());
+                out.writeLong(d.getValue());
+            }
+
+            out.writeInt(sources.size());
+            for (Map.Entry<File,Entry> s : sources.entrySet()) {
+                Entry e = s.getValue();
+                out.writeUTF(s.getKey().getPath());
+                out.writeLong(e.size);
+                out.writeLong(e.lastModified);
+                out.write(e.digest);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Loads the index from the disk.
+     *
+     * @return
+     *      always non-null. If the index file doesn't exist, is corrupted, or was written
+     *      for a different configuration, an empty index is returned.
+     */
+    public static SourceIndex load(File indexFile, String fingerprint) throws IOException {
+        SourceIndex index = new SourceIndex(indexFile,fingerprint);
+
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        } catch (FileNotFoundException e) {
+            return index;
+        }
+        try {
+            if (in.readInt()!=VERSION || !in.readUTF().equals(fingerprint))
+                return index;
+            index.timestamp = in.readLong();
+
+            int n = in.readInt();
+            for (int i=0; i<n; i++)
+                index.directories.put(new File(in.readUTF()),in.readLong());
+
+            n = in.readInt();
+            for (int i=0; i<n; i++) {
+                File f = new File(in.readUTF());
+                Entry e = new Entry();
+                e.size = in.readLong();
+                e.lastModified = in.readLong();
+                e.digest = new byte[DIGEST_LENGTH];
+                in.readFully(e.digest);
+                index.sources.put(f,e);
+            }
+            return index;
+        } catch (IOException e) {
+            // corrupted index. start over
+            return new SourceIndex(indexFile,fingerprint);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Computes the fingerprint of the configuration that affects which files are tracked.
+     */
+    public static String fingerprint(List<String> sourceRoots, Object... others) {
+        List<Object> all = new ArrayList<Object>(sourceRoots);
+        all.addAll(Arrays.asList(others));
+        return all.toString();
+    }
+
+    /**
+     * Determines the directory in which the incremental build information for the given
+     * output directory is kept.
+     */
+    public static File getStateDirectory(File buildDirectory, File outputDirectory) {
+        return new File(buildDirectory,"stapler-incremental/"+outputDirectory.getName());
+    }
+
+    /**
+     * Computes the MD5 digest of the file contents.
+     */
+    public static byte[] digest(File f) throws IOException {
+        MessageDigest md = createDigest();
+        InputStream in = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len=in.read(buf))>=0)
+                md.update(buf,0,len);
+        } finally {
+            in.close();
+        }
+        return md.digest();
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e); // MD5 is always there
+        }
+    }
+
+    private static final int VERSION = 1;
+
+    private static final int DIGEST_LENGTH = 16;
+
+    /**
+     * Timestamps within this many milliseconds of the time the index was taken are considered racy.
+     * Some file systems only keep timestamps to the second, or even two seconds.
+     */
+    private static final long RACY_WINDOW = 2000;
+}
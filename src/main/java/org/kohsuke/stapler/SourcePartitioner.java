@@ -0,0 +1,120 @@
+package org.kohsuke.stapler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Splits the sources to compile into partitions that can be compiled concurrently.
+ *
+ * <p>
+ * Sources are grouped by their packages, and the packages that refer to each other
+ * according to the {@link DependencyGraph} end up in the same group. The groups are then
+ * distributed to the partitions, biggest first, so that the partitions end up in roughly
+ * the same size.
+ *
+ * <p>
+ * A partition can still refer to sources in other partitions, for example when they are not
+ * known to the graph yet. Such references are resolved from the source path, so the result is
+ * correct either way; the grouping just avoids parsing the same sources in multiple partitions.
+ *
+ * <p>
+ * The partitioning only depends on the input, so the same sources always get compiled in the same way.
+ */
+final class SourcePartitioner {
+    private SourcePartitioner() {}
+
+    /**
+     * @param dependencies
+     *      the dependency graph, or null if unknown.
+     * @return
+     *      non-empty partitions of the source files, at most {@code count} of them.
+     */
+    static List<List<String>> partition(String[] sourceFiles, List<File> sourceRoots, DependencyGraph dependencies, int count) {
+        // package of each source
+        Map<String,String> packages = new HashMap<String,String>();
+        Map<String,String> relativePaths = new HashMap<String,String>();
+        Map<String,String> packagesByRelativePath = new HashMap<String,String>();
+        for (String f : sourceFiles) {
+            File file = new File(f);
+            String path = DependencyGraph.relativize(file, sourceRoots);
+            String pkg;
+            if (path==null) {
+                pkg = file.getAbsoluteFile().getParent();
+            } else {
+                int idx = path.lastIndexOf('/');
+                pkg = idx<0 ? "" : path.substring(0,idx);
+                relativePaths.put(f,path);
+                packagesByRelativePath.put(path,pkg);
+            }
+            packages.put(f,pkg);
+        }
+
+        // merge the packages that refer to each other
+        Map<String,String> parents = new HashMap<String,String>();
+        if (dependencies!=null) {
+            Map<String,Set<String>> refs = dependencies.getReferencedSources(relativePaths.values());
+            for (Map.Entry<String,Set<String>> e : refs.entrySet()) {
+                String pkg = packagesByRelativePath.get(e.getKey());
+                for (String ref : e.getValue()) {
+                    String refPkg = packagesByRelativePath.get(ref);
+                    if (refPkg!=null)
+                        union(parents, pkg, refPkg);
+                }
+            }
+        }
+
+        Map<String,List<String>> groups = new TreeMap<String,List<String>>();
+        for (String f : sourceFiles) {
+            String root = find(parents, packages.get(f));
+            List<String> group = groups.get(root);
+            if (group==null)
+                groups.put(root,group=new ArrayList<String>());
+            group.add(f);
+        }
+
+        // biggest groups first, into the smallest partition
+        List<List<String>> sortedGroups = new ArrayList<List<String>>(groups.values());
+        Collections.sort(sortedGroups, new Comparator<List<String>>() {
+            public int compare(List<String> a, List<String> b) {
+                return b.size()-a.size();   // stable, so ties stay in the package order
+            }
+        });
+
+        List<List<String>> partitions = new ArrayList<List<String>>();
+        for (int i=0; i<Math.min(count,sortedGroups.size()); i++)
+            partitions.add(new ArrayList<String>());
+        for (List<String> group : sortedGroups) {
+            List<String> smallest = partitions.get(0);
+            for (List<String> p : partitions)
+                if (p.size()<smallest.size())
+                    smallest = p;
+            smallest.addAll(group);
+        }
+        return partitions;
+    }
+
+    private static String find(Map<String,String> parents, String x) {
+        String p;
+        while ((p=parents.get(x))!=null)
+            x = p;
+        return x;
+    }
+
+    private static void union(Map<String,String> parents, String a, String b) {
+        a = find(parents,a);
+        b = find(parents,b);
+        if (a.equals(b))    return;
+        // the smaller name becomes the representative, to keep the grouping independent of the order
+        if (a.compareTo(b)<0)
+            parents.put(b,a);
+        else
+            parents.put(a,b);
+    }
+}
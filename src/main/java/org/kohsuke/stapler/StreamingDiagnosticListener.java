@@ -0,0 +1,106 @@
+package org.kohsuke.stapler;
+
+import java.util.ArrayList;
+import java.util.List;
+import javax.tools.Diagnostic;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.DiagnosticListener;
+import javax.tools.JavaFileObject;
+import org.codehaus.plexus.compiler.CompilerError;
+import org.codehaus.plexus.logging.Logger;
+
+/**
+ * Sends the compiler diagnostics to the log as javac reports them, and turns the errors and
+ * the warnings into {@link CompilerError}s.
+ *
+ * <p>
+ * The number of errors and warnings can be capped. The diagnostics beyond the cap are only counted.
+ * Reports can come from multiple threads.
+ */
+final class StreamingDiagnosticListener implements DiagnosticListener<JavaFileObject> {
+    private final Logger logger;
+    private final int maxErrors, maxWarnings;
+    private final boolean failFast;
+
+    private final List<CompilerError> messages = new ArrayList<CompilerError>();
+    private int errors, warnings;
+
+    /**
+     * @param maxErrors
+     *      the maximum number of errors to report, or 0 to report all.
+     * @param maxWarnings
+     *      the maximum number of warnings to report, or 0 to report all.
+     * @param failFast
+     *      if true, the compilation is aborted on the first error.
+     */
+    StreamingDiagnosticListener(Logger logger, int maxErrors, int maxWarnings, boolean failFast) {
+        this.logger = logger;
+        this.maxErrors = maxErrors;
+        this.maxWarnings = maxWarnings;
+        this.failFast = failFast;
+    }
+
+    boolean isFailFast() {
+        return failFast;
+    }
+
+    public void report(Diagnostic<? extends JavaFileObject> d) {
+        report(d.getKind(), JavacRunner.getPath(d.getSource()), d.getLineNumber(), d.getColumnNumber(), d.getMessage(null));
+        if (failFast && d.getKind()==Kind.ERROR)
+            throw new JavacRunner.CompilationAborted();
+    }
+
+    /**
+     * Reports a diagnostic that javac reported somewhere else, such as on a {@link CompileServer}.
+     *
+     * @param file
+     *      the source file, or null if the diagnostic isn't specific to a file.
+     * @param line
+     *      1-origin line number, or {@link Diagnostic#NOPOS}.
+     */
+    synchronized void report(Kind kind, String file, long line, long column, String message) {
+        switch (kind) {
+        case ERROR:
+            if (maxErrors==0 || errors<maxErrors) {
+                CompilerError e = toCompilerError(true, file, line, column, message);
+                logger.error(e.toString());
+                messages.add(e);
+            }
+            errors++;
+            break;
+        case WARNING:
+        case MANDATORY_WARNING:
+            if (maxWarnings==0 || warnings<maxWarnings) {
+                CompilerError e = toCompilerError(false, file, line, column, message);
+                logger.warn(e.toString());
+                messages.add(e);
+            }
+            warnings++;
+            break;
+        default:
+            logger.info(message);
+        }
+    }
+
+    private static CompilerError toCompilerError(boolean error, String file, long line, long column, String message) {
+        int l = line==Diagnostic.NOPOS ? 0 : (int)line;
+        int c = column==Diagnostic.NOPOS ? 0 : (int)column;
+        return new CompilerError(file, error, l, c, l, c, message);
+    }
+
+    synchronized boolean hasErrors() {
+        return errors>0;
+    }
+
+    /**
+     * Gets the errors and the warnings reported so far, except those beyond the cap.
+     * Also reports how many of them were left out.
+     */
+    synchronized List<CompilerError> getMessages() {
+        if (maxErrors>0 && errors>maxErrors)
+            logger.error((errors-maxErrors)+" more error(s) not shown");
+        if (maxWarnings>0 && warnings>maxWarnings)
+            logger.warn((warnings-maxWarnings)+" more warning(s) not shown");
+        return messages;
+    }
+}
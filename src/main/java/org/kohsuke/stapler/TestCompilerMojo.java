@@ -18,14 +18,10 @@
  */
 package org.kohsuke.stapler;
 
-import org.codehaus.plexus.compiler.util.scan.SimpleSourceInclusionScanner;
-import org.codehaus.plexus.compiler.util.scan.SourceInclusionScanner;
-import org.codehaus.plexus.compiler.util.scan.StaleSourceScanner;
 import org.apache.maven.plugin.CompilationFailureException;
 import org.apache.maven.plugin.MojoExecutionException;
 
 import java.io.File;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -118,42 +114,31 @@ public class TestCompilerMojo
         return outputDirectory;
     }
 
-    protected SourceInclusionScanner getSourceInclusionScanner( int staleMillis )
+    protected Set getSourceIncludes()
     {
-        SourceInclusionScanner scanner = null;
-
-        if ( testIncludes.isEmpty() && testExcludes.isEmpty() )
-        {
-            scanner = new StaleSourceScanner( staleMillis );
-        }
-        else
-        {
-            if ( testIncludes.isEmpty() )
-            {
-                testIncludes.add( "**/*.java" );
-            }
-            scanner = new StaleSourceScanner( staleMillis, testIncludes, testExcludes );
-        }
+        return testIncludes;
+    }
 
-        return scanner;
+    protected Set getSourceExcludes()
+    {
+        return testExcludes;
     }
 
-    protected SourceInclusionScanner getSourceInclusionScanner( String inputFileEnding )
+    protected RecordingStaleSourceScanner getSourceInclusionScanner( int staleMillis )
     {
-        SourceInclusionScanner scanner = null;
+        RecordingStaleSourceScanner scanner = null;
 
         if ( testIncludes.isEmpty() && testExcludes.isEmpty() )
         {
-            testIncludes = Collections.singleton( "**/*." + inputFileEnding );
-            scanner = new SimpleSourceInclusionScanner( testIncludes, Collections.EMPTY_SET );
+            scanner = new RecordingStaleSourceScanner( staleMillis );
         }
         else
         {
             if ( testIncludes.isEmpty() )
             {
-                testIncludes.add( "**/*." + inputFileEnding );
+                testIncludes.add( "**/*.java" );
             }
-            scanner = new SimpleSourceInclusionScanner( testIncludes, testExcludes );
+            scanner = new RecordingStaleSourceScanner( staleMillis, testIncludes, testExcludes );
         }
 
         return scanner;
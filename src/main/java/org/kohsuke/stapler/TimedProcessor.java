@@ -0,0 +1,54 @@
+package org.kohsuke.stapler;
+
+import java.util.Set;
+import javax.annotation.processing.Completion;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.Processor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+
+/**
+ * {@link Processor} that measures how long each round of another processor takes.
+ */
+final class TimedProcessor implements Processor {
+    private final Processor delegate;
+    private final CompileMetrics metrics;
+
+    TimedProcessor(Processor delegate, CompileMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        long start = System.nanoTime();
+        try {
+            return delegate.process(annotations, roundEnv);
+        } finally {
+            metrics.addProcessorRound(System.nanoTime()-start);
+        }
+    }
+
+    public Set<String> getSupportedOptions() {
+        return delegate.getSupportedOptions();
+    }
+
+    public Set<String> getSupportedAnnotationTypes() {
+        return delegate.getSupportedAnnotationTypes();
+    }
+
+    public SourceVersion getSupportedSourceVersion() {
+        return delegate.getSupportedSourceVersion();
+    }
+
+    public void init(ProcessingEnvironment processingEnv) {
+        delegate.init(processingEnv);
+    }
+
+    public Iterable<? extends Completion> getCompletions(Element element, AnnotationMirror annotation, ExecutableElement member, String userText) {
+        return delegate.getCompletions(element, annotation, member, userText);
+    }
+}
@@ -0,0 +1,52 @@
+package org.kohsuke.stapler.processor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+
+/**
+ * Handles one kind of Stapler annotation, as a part of {@link StaplerAnnotationProcessor},
+ * which walks the elements of each round just once for all the handlers.
+ *
+ * <p>
+ * Handlers other than the built-in ones are discovered through {@link java.util.ServiceLoader}:
+ * list them in <tt>META-INF/services/org.kohsuke.stapler.processor.AbstractStaplerProcessor</tt>
+ * and add them to the dependencies of the plugin.
+ */
+public abstract class AbstractStaplerProcessor {
+    protected ProcessingEnvironment processingEnv;
+
+    public void init(ProcessingEnvironment processingEnv) {
+        this.processingEnv = processingEnv;
+    }
+
+    /**
+     * Annotation types that this handler is interested in, in the form of
+     * {@link javax.annotation.processing.Processor#getSupportedAnnotationTypes()}.
+     * javac only runs {@link StaplerAnnotationProcessor} for the compilations that use one of them.
+     *
+     * <p>
+     * By default, they are taken from {@link SupportedAnnotationTypes} on the handler class.
+     */
+    public Set<String> getSupportedAnnotationTypes() {
+        SupportedAnnotationTypes a = getClass().getAnnotation(SupportedAnnotationTypes.class);
+        if (a==null)    return Collections.emptySet();
+        return new HashSet<String>(Arrays.asList(a.value()));
+    }
+
+    /**
+     * Processor options, given as <tt>-Akey=value</tt>, that this handler understands.
+     */
+    public Set<String> getSupportedOptions() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Processes a round. This is also called for the last round, which has no elements,
+     * so that the information accumulated over the rounds can be written out.
+     */
+    public abstract void process(StaplerRound round);
+}
@@ -0,0 +1,209 @@
+package org.kohsuke.stapler.processor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Remembers which source file each exposed bean came from, so that an incremental compilation
+ * can replace exactly the beans of the sources it recompiled, and drop the beans of the deleted sources,
+ * instead of only ever adding to <tt>META-INF/exposed.stapler-beans</tt>.
+ *
+ * <p>
+ * Sources are identified by their path relative to the directory this is kept in, so that the
+ * project can be moved around. When the source files can't be determined, the top-level class
+ * name is used instead, and such entries are never pruned.
+ */
+final class BeanProvenance {
+    /**
+     * Owner of the beans whose source is not known, because they were listed before the provenance was tracked.
+     */
+    static final String UNKNOWN = "";
+
+    private final File file;
+
+    /**
+     * The number of {@code @Exported} members of each bean, keyed by the source and then by the bean name.
+     */
+    private final SortedMap<String,SortedMap<String,Integer>> sources = new TreeMap<String,SortedMap<String,Integer>>();
+
+    private boolean loaded;
+
+    private BeanProvenance(File file) {
+        this.file = file;
+    }
+
+    /**
+     * True if the provenance was read from the disk. If not, the existing beans
+     * need to be added under {@link #UNKNOWN}.
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Determines how the given source is identified.
+     *
+     * @param file
+     *      where the provenance is kept, or null.
+     */
+    static String getKey(File file, File source) {
+        if (file==null)
+            return source.getAbsolutePath();
+
+        // walk up from our directory until it contains the source
+        String path = source.getAbsolutePath();
+        StringBuilder up = new StringBuilder();
+        for (File dir=file.getAbsoluteFile().getParentFile(); dir!=null; dir=dir.getParentFile()) {
+            String prefix = dir.getPath();
+            if (!prefix.endsWith(File.separator))
+                prefix += File.separatorChar;
+            if (path.startsWith(prefix))
+                return up+path.substring(prefix.length()).replace(File.separatorChar,'/');
+            up.append("../");
+        }
+        return source.getAbsolutePath();
+    }
+
+    /**
+     * Replaces the beans of the given source. The source is forgotten if it has no beans.
+     */
+    void replace(String source, SortedMap<String,Integer> beans) {
+        if (beans.isEmpty())
+            sources.remove(source);
+        else
+            sources.put(source, beans);
+    }
+
+    /**
+     * Adds beans whose source is not known.
+     */
+    void addUnknown(Map<String,Integer> beans) {
+        SortedMap<String,Integer> unknown = sources.get(UNKNOWN);
+        if (unknown==null)
+            sources.put(UNKNOWN, unknown=new TreeMap<String,Integer>());
+        for (Map.Entry<String,Integer> e : beans.entrySet())
+            if (!unknown.containsKey(e.getKey()))
+                unknown.put(e.getKey(), e.getValue());
+    }
+
+    /**
+     * Drops the beans of unknown source that are declared in the given top-level classes,
+     * since those classes were just compiled and their beans are known now.
+     */
+    void removeUnknown(Collection<String> topLevelClasses) {
+        SortedMap<String,Integer> unknown = sources.get(UNKNOWN);
+        if (unknown==null)  return;
+        for (String c : topLevelClasses) {
+            // the class and its nested classes, which sort right after it
+            for (Iterator<String> itr = unknown.tailMap(c).keySet().iterator(); itr.hasNext(); ) {
+                String bean = itr.next();
+                if (!bean.equals(c) && !bean.startsWith(c+'.'))
+                    break;
+                itr.remove();
+            }
+        }
+        if (unknown.isEmpty())
+            sources.remove(UNKNOWN);
+    }
+
+    /**
+     * Drops the beans of the source files that no longer exist.
+     */
+    void prune() {
+        File base = file==null ? null : file.getAbsoluteFile().getParentFile();
+        for (Iterator<String> itr = sources.keySet().iterator(); itr.hasNext(); ) {
+            String source = itr.next();
+            if (!source.endsWith(".java"))
+                continue;   // a class name
+            File f = new File(source);
+            if (!f.isAbsolute())
+                f = new File(base, source);
+            if (!f.exists())
+                itr.remove();
+        }
+    }
+
+    /**
+     * All the beans, regardless of their sources.
+     */
+    SortedMap<String,Integer> getBeans() {
+        SortedMap<String,Integer> all = new TreeMap<String,Integer>();
+        for (SortedMap<String,Integer> beans : sources.values())
+            all.putAll(beans);
+        return all;
+    }
+
+    /**
+     * Loads the provenance from the disk.
+     *
+     * @param file
+     *      null to track the provenance just in memory.
+     * @return
+     *      always non-null. If the file doesn't exist or is corrupted, empty provenance is returned.
+     */
+    static BeanProvenance load(File file) {
+        BeanProvenance p = new BeanProvenance(file);
+        if (file==null)
+            return p;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt()!=VERSION)
+                    return p;
+                int n = in.readInt();
+                for (int i=0; i<n; i++) {
+                    String source = in.readUTF();
+                    SortedMap<String,Integer> beans = new TreeMap<String,Integer>();
+                    int m = in.readInt();
+                    for (int j=0; j<m; j++)
+                        beans.put(in.readUTF(), in.readInt());
+                    p.sources.put(source, beans);
+                }
+                p.loaded = true;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // first compilation
+        } catch (IOException e) {
+            // corrupted. start over
+            p.sources.clear();
+        }
+        return p;
+    }
+
+    void save() throws IOException {
+        if (file==null)
+            return;
+        file.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(sources.size());
+            for (Map.Entry<String,SortedMap<String,Integer>> e : sources.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().size());
+                for (Map.Entry<String,Integer> b : e.getValue().entrySet()) {
+                    out.writeUTF(b.getKey());
+                    out.writeInt(b.getValue());
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static final int VERSION = 1;
+}
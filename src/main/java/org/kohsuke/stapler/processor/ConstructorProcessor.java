@@ -0,0 +1,208 @@
+package org.kohsuke.stapler.processor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Handles {@link DataBoundConstructor} annotation and captures parameter names.
+ *
+ * <p>
+ * As before, the parameter names are written to <tt>Foo.stapler</tt> next to <tt>Foo.class</tt>.
+ * In addition, the constructors of all the classes in a package are listed in
+ * <tt>{@value #INDEX}</tt> in that package, so that they can be loaded with a single read
+ * instead of one lookup per class. It's a properties file that maps the binary class name,
+ * without the package name, to the comma-separated parameter names.
+ *
+ * <p>
+ * Constructors can also be marked with <tt>@stapler-constructor</tt> in their javadoc. Finding those
+ * means looking at every class in every round, so it's only done when the <tt>{@value #JAVADOC_OPTION}</tt>
+ * processor option is set to true, as in <tt>-Astapler.constructorJavadoc=true</tt>.
+ */
+@SupportedAnnotationTypes("org.kohsuke.stapler.DataBoundConstructor")
+public class ConstructorProcessor extends AbstractStaplerProcessor {
+    /**
+     * Name of the per-package index. It can't collide with a class, since it's not a valid class name.
+     */
+    public static final String INDEX = "stapler-constructors.properties";
+
+    /**
+     * Processor option that enables the constructors marked with <tt>@stapler-constructor</tt> in javadoc.
+     */
+    public static final String JAVADOC_OPTION = "stapler.constructorJavadoc";
+
+    private boolean scanJavadoc;
+
+    /**
+     * Constructors found so far, keyed by the package and then by the class name within the package.
+     * Packages whose classes were compiled are here, even if they have no constructors to record,
+     * so that the classes that lost theirs get dropped from the index. Accumulated across rounds,
+     * and written out at the end.
+     */
+    private final Map<String,SortedMap<String,String>> packages = new HashMap<String,SortedMap<String,String>>();
+
+    /**
+     * Top-level classes compiled so far, keyed by their package.
+     */
+    private final Map<String,Set<String>> compiledClasses = new HashMap<String,Set<String>>();
+
+    @Override
+    public void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        scanJavadoc = Boolean.parseBoolean(processingEnv.getOptions().get(JAVADOC_OPTION));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * The constructors marked in javadoc can be in any class, so every round is needed to find them.
+     */
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        if (scanJavadoc)
+            return Collections.singleton("*");
+        return super.getSupportedAnnotationTypes();
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return Collections.singleton(JAVADOC_OPTION);
+    }
+
+    @Override
+    public void process(StaplerRound round) {
+        if (round.isProcessingOver()) {
+            for (Map.Entry<String,SortedMap<String,String>> e : packages.entrySet()) {
+                try {
+                    writeIndex(e.getKey(), e.getValue());
+                } catch (IOException x) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, x.toString());
+                }
+            }
+            return;
+        }
+
+        Set<ExecutableElement> constructors = new LinkedHashSet<ExecutableElement>();
+
+        for (Element e : round.getElementsAnnotatedWith(DataBoundConstructor.class))
+            if (e.getKind()==ElementKind.CONSTRUCTOR)
+                constructors.add((ExecutableElement)e);
+
+        // the ones marked in javadoc have to be looked for
+        if (scanJavadoc) {
+            for (TypeElement t : round.getTypes()) {
+                for (ExecutableElement c : ElementFilter.constructorsIn(t.getEnclosedElements())) {
+                    String javadoc = processingEnv.getElementUtils().getDocComment(c);
+                    if (javadoc!=null && javadoc.contains("@stapler-constructor"))
+                        constructors.add(c);
+                }
+            }
+        }
+
+        // the classes are recorded either way, so that the ones that lost their constructor get dropped from the index
+        for (TypeElement t : round.getRootTypes()) {
+            String pkg = getPackageName(t);
+            getConstructors(pkg);
+            Set<String> classes = compiledClasses.get(pkg);
+            if (classes==null)
+                compiledClasses.put(pkg, classes=new TreeSet<String>());
+            classes.add(getBinaryName(t));
+        }
+
+        for (ExecutableElement c : constructors) {
+            try {
+                write(c);
+            } catch (IOException x) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, x.toString(), c);
+            }
+        }
+    }
+
+    private void write(ExecutableElement c) throws IOException {
+        StringBuilder buf = new StringBuilder();
+        for (VariableElement p : c.getParameters()) {
+            if (buf.length()>0)  buf.append(',');
+            buf.append(p.getSimpleName());
+        }
+
+        TypeElement t = (TypeElement) c.getEnclosingElement();
+        String pkg = getPackageName(t);
+        getConstructors(pkg).put(getBinaryName(t), buf.toString());
+
+        SortedMap<String,String> props = new TreeMap<String,String>();
+        props.put("constructor", buf.toString());
+        String relativeName = getBinaryName(t).replace('$','/')+".stapler";
+        if (ResourceWriter.write(processingEnv.getFiler(), pkg, relativeName, ResourceWriter.toProperties(props)))
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Generating "+relativeName);
+    }
+
+    /**
+     * Merges the constructors found by this compilation into the index of the package.
+     * The entries of the recompiled classes are replaced, and those of the deleted classes are dropped.
+     */
+    private void writeIndex(String pkg, SortedMap<String,String> constructors) throws IOException {
+        SortedMap<String,String> all = new TreeMap<String,String>();
+
+        byte[] existing = ResourceWriter.read(processingEnv.getFiler(), pkg, INDEX);
+        if (existing!=null) {
+            Properties props = new Properties();
+            props.load(new ByteArrayInputStream(existing));
+            for (String name : props.stringPropertyNames())
+                all.put(name, props.getProperty(name));
+
+            Set<String> compiled = compiledClasses.get(pkg);
+            for (Iterator<String> itr = all.keySet().iterator(); itr.hasNext(); ) {
+                String name = itr.next();
+                String top = name.contains("$") ? name.substring(0,name.indexOf('$')) : name;
+                if ((compiled!=null && compiled.contains(top)) || !ResourceWriter.exists(processingEnv.getFiler(), pkg, name+".class"))
+                    itr.remove();
+            }
+        }
+        all.putAll(constructors);
+
+        if (existing==null && all.isEmpty())
+            return;
+        if (ResourceWriter.write(processingEnv.getFiler(), pkg, INDEX, ResourceWriter.toProperties(all)))
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Generating "+(pkg.length()>0 ? pkg.replace('.','/')+'/' : "")+INDEX);
+    }
+
+    private SortedMap<String,String> getConstructors(String pkg) {
+        SortedMap<String,String> constructors = packages.get(pkg);
+        if (constructors==null)
+            packages.put(pkg, constructors=new TreeMap<String,String>());
+        return constructors;
+    }
+
+    private String getPackageName(Element e) {
+        return processingEnv.getElementUtils().getPackageOf(e).getQualifiedName().toString();
+    }
+
+    /**
+     * Gets the binary name of the class, without the package name.
+     */
+    private String getBinaryName(TypeElement t) {
+        String pkg = getPackageName(t);
+        String name = processingEnv.getElementUtils().getBinaryName(t).toString();
+        return pkg.length()>0 ? name.substring(pkg.length()+1) : name;
+    }
+}
@@ -1,30 +1,31 @@
 package org.kohsuke.stapler.processor;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
-import javax.annotation.processing.AbstractProcessor;
-import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.SupportedAnnotationTypes;
-import javax.annotation.processing.SupportedSourceVersion;
-import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.TypeElement;
 import javax.tools.Diagnostic;
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.export.Exported;
 
 /**
@@ -34,177 +35,325 @@ import org.kohsuke.stapler.export.Exported;
  *
  * @author Anton Kozak
  */
-@SupportedSourceVersion(SourceVersion.RELEASE_6)
-@SupportedAnnotationTypes("*")
-public class ExportedBeanAnnotationProcessor extends AbstractProcessor {
+@SupportedAnnotationTypes("org.kohsuke.stapler.export.Exported")
+public class ExportedBeanAnnotationProcessor extends AbstractStaplerProcessor {
 
-    private String destinationPath = "";
+    /**
+     * Processor option that points to the directory where the incremental build information is kept.
+     * When given, the processor remembers which source each exposed bean came from, so that
+     * incremental compilations can drop the beans that are gone.
+     */
+    public static final String STATE_DIRECTORY_OPTION = "stapler.stateDirectory";
+
+    /**
+     * Processor option that turns on {@link ExporterGenerator}, when set to <tt>true</tt>.
+     * The generated exporters are listed in <tt>{@value #EXPORTERS}</tt>, which maps
+     * the bean names to the exporter names.
+     */
+    public static final String GENERATE_EXPORTERS_OPTION = "stapler.generateExporters";
+
+    public static final String EXPORTERS = "META-INF/exposed.stapler-exporters";
+
+    public static final String BEANS = "META-INF/exposed.stapler-beans";
 
     /**
      * Sets destination path.
      *
      * @param destinationPath destination path.
+     * @deprecated
+     *      The outputs are written to {@link javax.tools.StandardLocation#CLASS_OUTPUT} through the {@link Filer},
+     *      wherever the compiler puts the class files, so this is ignored.
      */
+    @Deprecated
     public void setDestinationPath(String destinationPath) {
-        this.destinationPath = destinationPath;
     }
 
+    /**
+     * Exposed beans of the sources compiled so far, with the number of their {@link Exported} members.
+     * Keyed by the source, as determined by {@link BeanProvenance#getKey(File, File)}, and then by the bean name.
+     * Sources without beans are here, too, so that the beans they used to have get dropped.
+     * Accumulated across rounds, and written out at the end.
+     */
+    private final Map<String, SortedMap<String, Integer>> compiledSources = new HashMap<String, SortedMap<String, Integer>>();
+
+    /**
+     * Top-level classes compiled so far.
+     */
+    private final Set<String> compiledClasses = new TreeSet<String>();
+
+    /**
+     * Where {@link BeanProvenance} is kept. Null if it's not kept.
+     */
+    private File provenanceFile;
+
+    private SourceLocator sourceLocator;
+
+    /**
+     * Null unless {@link #GENERATE_EXPORTERS_OPTION} is on.
+     */
+    private ExporterGenerator exporterGenerator;
+
+    /**
+     * Exporters generated so far, keyed by the bean name.
+     */
+    private final Map<String, String> exporters = new TreeMap<String, String>();
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    public void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        String stateDir = processingEnv.getOptions().get(STATE_DIRECTORY_OPTION);
+        if (stateDir != null) {
+            provenanceFile = getProvenanceFile(new File(stateDir));
+        }
+        if (Boolean.parseBoolean(processingEnv.getOptions().get(GENERATE_EXPORTERS_OPTION))) {
+            exporterGenerator = new ExporterGenerator(processingEnv);
+        }
         try {
-            //TODO find way how to get java options and receive destinationPath from it
-            //String destinationPath = processingEnv.getOptions().get("-d");
-            if (StringUtils.isEmpty(destinationPath)) {
-                return false;
-            }
-            File beans = new File(new File(destinationPath), "META-INF/exposed.stapler-beans");
-            Set<String> exposedBeanNames = new TreeSet<String>();
-            if (beans.exists()) {
-                BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(beans)));
-                String line;
-                while ((line = in.readLine()) != null) {
-                    exposedBeanNames.add(line.trim());
-                }
-                in.close();
+            sourceLocator = new SourceLocator(processingEnv);
+        } catch (LinkageError e) {
+            // the javac API isn't visible to us, so the beans are tracked by their class names
+        } catch (IllegalArgumentException e) {
+            // not javac
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * When the sources of the beans are kept track of, the processor needs to see every round,
+     * so that it notices the sources that no longer have any {@link Exported} members.
+     */
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        if (provenanceFile != null) {
+            return Collections.singleton("*");
+        }
+        return super.getSupportedAnnotationTypes();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getSupportedOptions() {
+        return new HashSet<String>(Arrays.asList(STATE_DIRECTORY_OPTION, GENERATE_EXPORTERS_OPTION));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(StaplerRound round) {
+        if (round.isProcessingOver()) {
+            try {
+                writeExposedBeans();
+            } catch (IOException x) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, x.toString());
             }
+            return;
+        }
+
+        // every compiled source replaces the beans it had before, even if it has none now
+        for (TypeElement root : round.getRootTypes()) {
+            compiledClasses.add(root.getQualifiedName().toString());
+            getBeans(root);
+        }
+
+        // the owner can be a nested type of any depth
+        Map<TypeElement, SortedMap<String, String>> javadocs = new LinkedHashMap<TypeElement, SortedMap<String, String>>();
+        Map<TypeElement, List<Element>> exported = new HashMap<TypeElement, List<Element>>();
+        for (Element element : round.getElementsAnnotatedWith(Exported.class)) {
+            Element owner = element.getEnclosingElement();
+            if (owner instanceof TypeElement) {
+                TypeElement type = (TypeElement) owner;
+                String name = type.getQualifiedName().toString();
+                SortedMap<String, Integer> beans = getBeans(type);
+                Integer members = beans.get(name);
+                beans.put(name, members == null ? 1 : members + 1);
 
-            Map<String, List<Element>> subclassesElements = new HashMap<String, List<Element>>();
-
-            for (Element rootElement : roundEnv.getRootElements()) {
-                if (ElementKind.CLASS == rootElement.getKind()) {
-                    String rootElementName = ((TypeElement) rootElement).getQualifiedName().toString();
-                    for (Element element : rootElement.getEnclosedElements()) {
-                        //collect subclasses
-                        if (ElementKind.CLASS == element.getKind()) {
-                            List<Element> subclasses = subclassesElements.get(rootElementName);
-                            if (subclasses == null) {
-                                subclassesElements.put(rootElementName, subclasses = new ArrayList<Element>());
-                            }
-                            subclasses.add(element);
-                        }
-
-                        if (element.getAnnotation(Exported.class) != null) {
-                            exposedBeanNames.add(rootElementName);
-                        }
+                SortedMap<String, String> docs = javadocs.get(type);
+                if (docs == null) {
+                    javadocs.put(type, docs = new TreeMap<String, String>());
+                    exported.put(type, new ArrayList<Element>());
+                }
+                exported.get(type).add(element);
+                String javadoc = processingEnv.getElementUtils().getDocComment(element);
+                if (javadoc != null) {
+                    if (element.getKind() == ElementKind.FIELD) {
+                        docs.put(element.getSimpleName().toString(), javadoc);
+                    } else if (element.getKind() == ElementKind.METHOD) {
+                        docs.put(element.getSimpleName() + "()", javadoc);
                     }
                 }
             }
-            Set<String> exposedBeans = new TreeSet<String>();
-            exposedBeans.addAll(exposedBeanNames);
-            for (String exposedBeanName : exposedBeanNames) {
-                List<Element> subclasses = subclassesElements.get(exposedBeanName);
-                if (CollectionUtils.isNotEmpty(subclasses)) {
-                    for (Element element : subclasses) {
-                        exposedBeans.add(((TypeElement) element).getQualifiedName().toString());
+        }
+
+        // a type is only ever seen in one round, so each .javadoc is created at most once
+        for (Map.Entry<TypeElement, SortedMap<String, String>> e : javadocs.entrySet()) {
+            try {
+                writeJavadoc(e.getKey(), e.getValue());
+            } catch (IOException x) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, x.toString(), e.getKey());
+            }
+        }
+
+        if (exporterGenerator != null) {
+            for (TypeElement bean : javadocs.keySet()) {
+                try {
+                    String exporter = exporterGenerator.generate(bean, exported.get(bean));
+                    if (exporter != null) {
+                        exporters.put(bean.getQualifiedName().toString(), exporter);
                     }
+                } catch (IOException x) {
+                    processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, x.toString(), bean);
                 }
             }
+        }
+    }
 
-            //add subclasses into exposedBeanNames if root element contains Exported methods/properties
-
-
-//            for (Element element : roundEnv.getElementsAnnotatedWith(Exported.class)) {
-//                if (element instanceof TypeElement) {
-//
-//                }
-//            }
-
-/*
-            AnnotationTypeDeclaration $exposed =
-                (AnnotationTypeDeclaration) env.getTypeDeclaration(Exported.class.getName());
-
-            // collect all exposed properties
-            Map<TypeDeclaration, List<MemberDeclaration>> props =
-                new HashMap<TypeDeclaration, List<MemberDeclaration>>();
-            for( Declaration d : env.getDeclarationsAnnotatedWith($exposed)) {
-                MemberDeclaration md = (MemberDeclaration) d;
-                TypeDeclaration owner = md.getDeclaringType();
-                List<MemberDeclaration> list = props.get(owner);
-                if(list==null)
-                    props.put(owner,list=new ArrayList<MemberDeclaration>());
-                list.add(md);
+    /**
+     * Determines the file in which the sources of the exposed beans are kept.
+     */
+    public static File getProvenanceFile(File stateDirectory) {
+        return new File(stateDirectory, "exposed-beans.provenance");
+    }
+
+    /**
+     * Gets the beans of the source that the given type comes from.
+     */
+    private SortedMap<String, Integer> getBeans(TypeElement type) {
+        Element top = type;
+        while (top.getEnclosingElement() instanceof TypeElement) {
+            top = top.getEnclosingElement();
+        }
+
+        File source = sourceLocator == null ? null : sourceLocator.getSourceFile(top);
+        String key = source == null ? ((TypeElement) top).getQualifiedName().toString() : BeanProvenance.getKey(provenanceFile, source);
+        SortedMap<String, Integer> beans = compiledSources.get(key);
+        if (beans == null) {
+            compiledSources.put(key, beans = new TreeMap<String, Integer>());
+        }
+        return beans;
+    }
+
+    /**
+     * Writes the javadoc of the exposed properties of the bean next to its class file, where
+     * Stapler looks for it at runtime. The file is left alone if the javadoc hasn't changed.
+     */
+    private void writeJavadoc(TypeElement bean, SortedMap<String, String> javadocs) throws IOException {
+        String pkg = processingEnv.getElementUtils().getPackageOf(bean).getQualifiedName().toString();
+        String name = bean.getQualifiedName().toString();
+        if (pkg.length() > 0) {
+            name = name.substring(pkg.length() + 1);
+        }
+        String relativeName = name.replace('.', '/') + ".javadoc";
+        if (ResourceWriter.write(processingEnv.getFiler(), pkg, relativeName, ResourceWriter.toProperties(javadocs))) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Generating " + relativeName);
+        }
+    }
+
+    /**
+     * Updates <tt>{@value #BEANS}</tt> and its binary counterpart, {@link ExposedBeanIndex},
+     * with the beans found by this compilation. The beans of the recompiled sources are replaced,
+     * and the beans of the deleted sources are dropped.
+     */
+    private void writeExposedBeans() throws IOException {
+        Filer filer = processingEnv.getFiler();
+
+        // compilations running concurrently in the same JVM read and update the same file
+        synchronized (ExportedBeanAnnotationProcessor.class) {
+            BeanProvenance provenance = BeanProvenance.load(provenanceFile);
+            if (!provenance.isLoaded()) {
+                // we don't know where the beans listed so far came from, so they stay
+                // until the classes that declared them are recompiled
+                provenance.addUnknown(readExposedBeans());
+            }
+            provenance.removeUnknown(compiledClasses);
+            for (Map.Entry<String, SortedMap<String, Integer>> e : compiledSources.entrySet()) {
+                provenance.replace(e.getKey(), e.getValue());
             }
+            provenance.prune();
+            SortedMap<String, Integer> all = provenance.getBeans();
 
-            for (Map.Entry<TypeDeclaration, List<MemberDeclaration>> e : props.entrySet()) {
-                exposedBeanNames.add(e.getKey().getQualifiedName());
-
-                final Properties javadocs = new Properties();
-                for (MemberDeclaration md : e.getValue()) {
-                    md.accept(new SimpleDeclarationVisitor() {
-                        public void visitFieldDeclaration(FieldDeclaration f) {
-                            String javadoc = f.getDocComment();
-                            if(javadoc!=null)
-                                javadocs.put(f.getSimpleName(), javadoc);
-                        }
-                        public void visitMethodDeclaration(MethodDeclaration m) {
-                            String javadoc = m.getDocComment();
-                            if(javadoc!=null)
-                                javadocs.put(m.getSimpleName()+"()", javadoc);
-                        }
-
-                        // way too tedious.
-                        //private String getSignature(MethodDeclaration m) {
-                        //    final StringBuilder buf = new StringBuilder(m.getSimpleName());
-                        //    buf.append('(');
-                        //    boolean first=true;
-                        //    for (ParameterDeclaration p : m.getParameters()) {
-                        //        if(first)   first = false;
-                        //        else        buf.append(',');
-                        //        p.getType().accept(new SimpleTypeVisitor() {
-                        //            public void visitPrimitiveType(PrimitiveType pt) {
-                        //                buf.append(pt.getKind().toString().toLowerCase());
-                        //            }
-                        //            public void visitDeclaredType(DeclaredType dt) {
-                        //                buf.append(dt.getDeclaration().getQualifiedName());
-                        //            }
-                        //
-                        //            public void visitArrayType(ArrayType at) {
-                        //                at.getComponentType().accept(this);
-                        //                buf.append("[]");
-                        //            }
-                        //
-                        //            public void visitTypeVariable(TypeVariable tv) {
-                        //
-                        //                // TODO
-                        //                super.visitTypeVariable(typeVariable);
-                        //            }
-                        //
-                        //            public void visitVoidType(VoidType voidType) {
-                        //                // TODO
-                        //                super.visitVoidType(voidType);
-                        //            }
-                        //        });
-                        //    }
-                        //    buf.append(')');
-                        //    // TODO
-                        //    return null;
-                        //}
-                    });
-                }
+            StringBuilder text = new StringBuilder();
+            for (String beanName : all.keySet()) {
+                text.append(beanName).append(LINE_SEPARATOR);
+            }
+            ResourceWriter.write(filer, "", BEANS, text.toString().getBytes("UTF-8"));
+            ResourceWriter.write(filer, "", ExposedBeanIndex.FILE_NAME, ExposedBeanIndex.write(all));
+            if (exporterGenerator != null) {
+                writeExporters(all);
+            }
 
-                File javadocFile = new File(e.getKey().getQualifiedName().replace('.', '/') + ".javadoc");
-                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Generating "+javadocFile);
-                OutputStream os = processingEnv.getFiler().createResource(Filer.Location.CLASS_TREE,"", "", javadocFile);
-                try {
-                    javadocs.store(os,null);
-                } finally {
-                    os.close();
+            provenance.save();
+        }
+    }
+
+    /**
+     * Updates <tt>{@value #EXPORTERS}</tt> with the exporters generated by this compilation.
+     * The exporters of the recompiled classes are replaced, and those of the beans that are gone are dropped.
+     *
+     * @param beans
+     *      all the exposed beans.
+     */
+    private void writeExporters(SortedMap<String, Integer> beans) throws IOException {
+        SortedMap<String, String> all = new TreeMap<String, String>();
+        byte[] existing = ResourceWriter.read(processingEnv.getFiler(), "", EXPORTERS);
+        if (existing != null) {
+            Properties props = new Properties();
+            props.load(new ByteArrayInputStream(existing));
+            for (String bean : props.stringPropertyNames()) {
+                if (beans.containsKey(bean) && !isCompiled(bean)) {
+                    all.put(bean, props.getProperty(bean));
                 }
             }
-*/
-            beans.getParentFile().mkdirs();
-            PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(beans), "UTF-8"));
-            for (String beanName : exposedBeans) {
-                w.println(beanName);
+        }
+        all.putAll(exporters);
+        ResourceWriter.write(processingEnv.getFiler(), "", EXPORTERS, ResourceWriter.toProperties(all));
+    }
+
+    /**
+     * Checks if the bean was compiled by this compilation.
+     */
+    private boolean isCompiled(String bean) {
+        for (String c : compiledClasses) {
+            if (bean.equals(c) || bean.startsWith(c + '.')) {
+                return true;
             }
-            w.close();
+        }
+        return false;
+    }
 
-        } catch (IOException x) {
-            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, x.toString());
+    /**
+     * Reads the beans listed by the previous compilations.
+     */
+    private SortedMap<String, Integer> readExposedBeans() throws IOException {
+        SortedMap<String, Integer> all = new TreeMap<String, Integer>();
+        byte[] index = ResourceWriter.read(processingEnv.getFiler(), "", ExposedBeanIndex.FILE_NAME);
+        if (index != null) {
+            try {
+                all.putAll(ExposedBeanIndex.read(ByteBuffer.wrap(index)));
+            } catch (IOException e) {
+                // corrupted or from an incompatible version. rebuild it from the text file
+            }
+        }
+        byte[] beans = ResourceWriter.read(processingEnv.getFiler(), "", BEANS);
+        if (beans != null) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(beans), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !all.containsKey(line)) {
+                    all.put(line, 0);
+                }
+            }
         }
-        return true;
+        return all;
     }
+
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
 }
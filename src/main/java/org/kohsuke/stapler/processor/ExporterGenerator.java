@@ -0,0 +1,211 @@
+package org.kohsuke.stapler.processor;
+
+import java.beans.Introspector;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.type.TypeKind;
+import javax.tools.JavaFileObject;
+import org.kohsuke.stapler.export.Exported;
+
+/**
+ * Generates a class for an exported bean that reads its {@link Exported} properties
+ * without reflection, so that the remote API doesn't have to go through reflection
+ * for every property of every object it serves.
+ *
+ * <p>
+ * For the bean <tt>foo.Bar</tt>, this generates <tt>foo.Bar_StaplerExporter</tt>, which looks like this:
+ *
+ * <pre>
+ * public final class Bar_StaplerExporter {
+ *     public static final String[] NAMES = {"name", "size"};
+ *     public static final int[] VISIBILITIES = {1, 1};
+ *     public static Object get(Bar bean, int index) {
+ *         switch (index) {
+ *         case 0: return bean.name;
+ *         case 1: return bean.getSize();
+ *         ...
+ * </pre>
+ *
+ * The properties are in the order they are declared in. A generic bean is taken with wildcards
+ * for its type parameters, such as <tt>Bar&lt;?&gt;</tt>. The values of the primitive properties
+ * are boxed, just like they are when they are read through reflection.
+ *
+ * <p>
+ * Beans whose properties can't be read this way are skipped, and keep being exported through reflection.
+ * That's the case for private fields and methods, static members, methods that take parameters,
+ * and methods that return void. Local and anonymous classes are skipped, too.
+ */
+final class ExporterGenerator {
+    private final ProcessingEnvironment processingEnv;
+
+    ExporterGenerator(ProcessingEnvironment processingEnv) {
+        this.processingEnv = processingEnv;
+    }
+
+    /**
+     * Generates the exporter of the bean.
+     *
+     * @param members
+     *      the {@link Exported} members of the bean.
+     * @return
+     *      the binary name of the exporter, or null if the bean can't have one.
+     */
+    String generate(TypeElement bean, List<Element> members) throws IOException {
+        if (bean.getNestingKind()==NestingKind.LOCAL || bean.getNestingKind()==NestingKind.ANONYMOUS)
+            return null;
+        for (Element e=bean; e instanceof TypeElement; e=e.getEnclosingElement())
+            if (e.getModifiers().contains(Modifier.PRIVATE))
+                return null;
+        for (Element m : members) {
+            if (m.getModifiers().contains(Modifier.PRIVATE) || m.getModifiers().contains(Modifier.STATIC))
+                return null;
+            if (m.getKind()==ElementKind.METHOD) {
+                ExecutableElement method = (ExecutableElement)m;
+                if (!method.getParameters().isEmpty() || method.getReturnType().getKind()==TypeKind.VOID)
+                    return null;
+            }
+        }
+
+        String pkg = processingEnv.getElementUtils().getPackageOf(bean).getQualifiedName().toString();
+        String beanName = bean.getQualifiedName().toString();
+        String simpleName = (pkg.length()>0 ? beanName.substring(pkg.length()+1) : beanName).replace('.','_')+"_StaplerExporter";
+        String name = pkg.length()>0 ? pkg+'.'+simpleName : simpleName;
+
+        JavaFileObject source = processingEnv.getFiler().createSourceFile(name, bean);
+        PrintWriter w = new PrintWriter(source.openWriter());
+        try {
+            if (pkg.length()>0) {
+                w.println("package "+pkg+";");
+                w.println();
+            }
+            w.println("/**");
+            w.println(" * Reads the exported properties of {@link "+beanName+"} without reflection.");
+            w.println(" * Generated by the Stapler annotation processor.");
+            w.println(" */");
+            w.println("public final class "+simpleName+" {");
+            w.println("    private "+simpleName+"() {}");
+            w.println();
+
+            w.print("    public static final String[] NAMES = {");
+            for (int i=0; i<members.size(); i++)
+                w.print((i>0 ? ", " : "")+quote(getPropertyName(members.get(i))));
+            w.println("};");
+            w.println();
+
+            w.print("    public static final int[] VISIBILITIES = {");
+            for (int i=0; i<members.size(); i++)
+                w.print((i>0 ? ", " : "")+members.get(i).getAnnotation(Exported.class).visibility());
+            w.println("};");
+            w.println();
+
+            w.println("    public static Object get("+getTypeName(bean)+" bean, int index) {");
+            w.println("        switch (index) {");
+            for (int i=0; i<members.size(); i++) {
+                Element m = members.get(i);
+                w.println("        case "+i+": return bean."+m.getSimpleName()+(m.getKind()==ElementKind.METHOD ? "()" : "")+";");
+            }
+            w.println("        default: throw new IndexOutOfBoundsException(String.valueOf(index));");
+            w.println("        }");
+            w.println("    }");
+            w.println("}");
+        } finally {
+            w.close();
+        }
+
+        return name;
+    }
+
+    /**
+     * Spells out the type of the bean, with wildcards for the type parameters
+     * of the bean and the classes that an inner class is enclosed in.
+     */
+    private static String getTypeName(TypeElement type) {
+        StringBuilder buf = new StringBuilder();
+        String outer = null;
+        if (type.getNestingKind()==NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC))
+            outer = getTypeName((TypeElement)type.getEnclosingElement());
+        if (outer!=null && outer.contains("<"))
+            buf.append(outer).append('.').append(type.getSimpleName());
+        else
+            buf.append(type.getQualifiedName());
+
+        List<? extends TypeParameterElement> params = type.getTypeParameters();
+        for (int i=0; i<params.size(); i++)
+            buf.append(i==0 ? "<" : ", ").append('?');
+        if (!params.isEmpty())
+            buf.append('>');
+        return buf.toString();
+    }
+
+    /**
+     * Determines the name of the property, the same way Stapler does.
+     */
+    private static String getPropertyName(Element m) {
+        String name = m.getAnnotation(Exported.class).name();
+        if (name.length()>0)
+            return name;
+        name = m.getSimpleName().toString();
+        if (m.getKind()==ElementKind.METHOD) {
+            if (name.startsWith("get") && name.length()>3)
+                name = name.substring(3);
+            else
+            if (name.startsWith("is") && name.length()>2)
+                name = name.substring(2);
+            name = Introspector.decapitalize(name);
+        }
+        return name;
+    }
+
+    /**
+     * Writes the string as a Java string literal.
+     *
+     * <p>
+     * The control characters can't be written as unicode escapes, since javac translates those
+     * before it parses the source, and <tt>&#92;u000a</tt> would end the line in the middle of the literal.
+     */
+    private static String quote(String s) {
+        StringBuilder buf = new StringBuilder("\"");
+        for (int i=0; i<s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+            case '"':
+            case '\\':
+                buf.append('\\').append(ch);
+                break;
+            case '\b':
+                buf.append("\\b");
+                break;
+            case '\t':
+                buf.append("\\t");
+                break;
+            case '\n':
+                buf.append("\\n");
+                break;
+            case '\f':
+                buf.append("\\f");
+                break;
+            case '\r':
+                buf.append("\\r");
+                break;
+            default:
+                if (ch<0x20)
+                    buf.append(String.format("\\%03o",(int)ch));
+                else
+                if (ch>0x7E)
+                    buf.append(String.format("\\u%04x",(int)ch));
+                else
+                    buf.append(ch);
+            }
+        }
+        return buf.append('"').toString();
+    }
+}
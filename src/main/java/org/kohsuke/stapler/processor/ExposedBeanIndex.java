@@ -0,0 +1,245 @@
+package org.kohsuke.stapler.processor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Binary counterpart of <tt>META-INF/exposed.stapler-beans</tt>, written next to it as
+ * <tt>META-INF/exposed.stapler-beans.idx</tt>.
+ *
+ * <p>
+ * The text file has to be parsed line by line, and every name in it class-loaded, to find out
+ * anything about the beans. The index can be mapped into memory and binary-searched as is.
+ * It's laid out as follows, with all the integers in big endian:
+ *
+ * <pre>
+ * byte[4]  magic "SBIX"
+ * byte     version (1)
+ * int      number of beans
+ * int      CRC32 of the entries
+ * int      number of restart points
+ * int[]    offset of each restart point from the start of the entries
+ * entries  one per bean, sorted by name
+ * </pre>
+ *
+ * Each entry is the length of the prefix it shares with the name of the previous entry, the length
+ * of the rest of the name, the rest of the name in UTF-8, then the number of <tt>@Exported</tt>
+ * members of the bean. The lengths and the count are variable-length integers, 7 bits per byte,
+ * low bits first. Every {@value #RESTART_INTERVAL}th entry is a restart point, which shares nothing
+ * with its predecessor, so a lookup binary-searches the restart points and then scans at most
+ * {@value #RESTART_INTERVAL} entries. See {@link #find(ByteBuffer, String)}.
+ *
+ * <p>
+ * The member count is 0 for beans that were only known from the text file.
+ */
+public final class ExposedBeanIndex {
+    private ExposedBeanIndex() {}
+
+    public static final String FILE_NAME = "META-INF/exposed.stapler-beans.idx";
+
+    private static final byte[] MAGIC = {'S','B','I','X'};
+    private static final int VERSION = 1;
+    private static final int RESTART_INTERVAL = 16;
+
+    /**
+     * Formats the index.
+     *
+     * @param beans
+     *      the number of <tt>@Exported</tt> members of each bean, keyed by the bean name.
+     */
+    public static byte[] write(SortedMap<String,Integer> beans) {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        List<Integer> restarts = new ArrayList<Integer>();
+        byte[] prev = new byte[0];
+        int i=0;
+        for (Map.Entry<String,Integer> e : beans.entrySet()) {
+            byte[] name = utf8(e.getKey());
+            int shared = 0;
+            if (i++%RESTART_INTERVAL==0)
+                restarts.add(entries.size());
+            else
+                while (shared<prev.length && shared<name.length && prev[shared]==name[shared])
+                    shared++;
+            writeVarInt(entries, shared);
+            writeVarInt(entries, name.length-shared);
+            entries.write(name, shared, name.length-shared);
+            writeVarInt(entries, e.getValue());
+            prev = name;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(entries.toByteArray());
+
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(beans.size());
+            out.writeInt((int)crc.getValue());
+            out.writeInt(restarts.size());
+            for (int r : restarts)
+                out.writeInt(r);
+            entries.writeTo(out);
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e); // writing to memory
+        }
+    }
+
+    /**
+     * Reads all the beans in the index.
+     *
+     * @throws IOException
+     *      if the data isn't an index, or is corrupted.
+     */
+    public static SortedMap<String,Integer> read(ByteBuffer index) throws IOException {
+        Header h = new Header(index);
+        CRC32 crc = new CRC32();
+        byte[] entries = new byte[h.entries.remaining()];
+        h.entries.duplicate().get(entries);
+        crc.update(entries);
+        if ((int)crc.getValue()!=h.crc)
+            throw new IOException("Corrupted index");
+
+        SortedMap<String,Integer> beans = new TreeMap<String,Integer>();
+        ByteBuffer buf = h.entries.duplicate();
+        byte[] name = new byte[0];
+        try {
+            for (int i=0; i<h.size; i++) {
+                name = readName(buf, name);
+                beans.put(new String(name,"UTF-8"), readVarInt(buf));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupted index");
+        }
+        return beans;
+    }
+
+    /**
+     * Looks up a bean without reading the whole index.
+     *
+     * @return
+     *      the number of <tt>@Exported</tt> members of the bean, or -1 if the bean isn't in the index.
+     */
+    public static int find(ByteBuffer index, String bean) throws IOException {
+        Header h = new Header(index);
+        try {
+            // find the last restart point whose name isn't greater than the one we are looking for
+            int lo=0, hi=h.restarts.length-1, start=-1;
+            while (lo<=hi) {
+                int mid = (lo+hi)>>>1;
+                ByteBuffer buf = h.entries.duplicate();
+                buf.position(h.restarts[mid]);
+                int c = new String(readName(buf,null),"UTF-8").compareTo(bean);
+                if (c==0)
+                    return readVarInt(buf);
+                if (c<0) {
+                    start = mid;
+                    lo = mid+1;
+                } else {
+                    hi = mid-1;
+                }
+            }
+            if (start<0)
+                return -1;
+
+            ByteBuffer buf = h.entries.duplicate();
+            buf.position(h.restarts[start]);
+            byte[] name = null;
+            int n = Math.min(RESTART_INTERVAL, h.size-start*RESTART_INTERVAL);
+            for (int i=0; i<n; i++) {
+                name = readName(buf, name);
+                int members = readVarInt(buf);
+                int c = new String(name,"UTF-8").compareTo(bean);
+                if (c==0)   return members;
+                if (c>0)    break;
+            }
+            return -1;
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Corrupted index");
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Corrupted index");
+        }
+    }
+
+    private static final class Header {
+        final int size, crc;
+        final int[] restarts;
+        final ByteBuffer entries;
+
+        Header(ByteBuffer index) throws IOException {
+            ByteBuffer buf = index.duplicate();
+            try {
+                for (byte b : MAGIC)
+                    if (buf.get()!=b)
+                        throw new IOException("Not a bean index");
+                if (buf.get()!=VERSION)
+                    throw new IOException("Unsupported bean index version");
+                size = buf.getInt();
+                crc = buf.getInt();
+                restarts = new int[buf.getInt()];
+                for (int i=0; i<restarts.length; i++)
+                    restarts[i] = buf.getInt();
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Corrupted index");
+            }
+            entries = buf.slice();
+        }
+    }
+
+    /**
+     * Reads the name of the next entry.
+     *
+     * @param prev
+     *      the name of the previous entry, or null at a restart point.
+     */
+    private static byte[] readName(ByteBuffer buf, byte[] prev) {
+        int shared = readVarInt(buf);
+        int len = readVarInt(buf);
+        if (shared<0 || len<0 || shared>(prev==null ? 0 : prev.length))
+            throw new BufferUnderflowException();
+        byte[] name = new byte[shared+len];
+        if (shared>0)
+            System.arraycopy(prev,0,name,0,shared);
+        buf.get(name,shared,len);
+        return name;
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int v) {
+        while ((v&~0x7F)!=0) {
+            out.write((v&0x7F)|0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarInt(ByteBuffer buf) {
+        int v=0;
+        for (int shift=0; ; shift+=7) {
+            byte b = buf.get();
+            v |= (b&0x7F)<<shift;
+            if ((b&0x80)==0)
+                return v;
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
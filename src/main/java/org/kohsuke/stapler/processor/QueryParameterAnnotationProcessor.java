@@ -0,0 +1,87 @@
+package org.kohsuke.stapler.processor;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.tools.Diagnostic;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * Handles {@link QueryParameter} annotation and captures parameter names,
+ * so that Stapler doesn't have to dig them out of the byte code at runtime.
+ *
+ * <p>
+ * The parameter names of each method are written to <tt>Foo/methodName.stapler</tt>
+ * next to <tt>Foo.class</tt>, as a comma-separated list.
+ */
+@SupportedAnnotationTypes("org.kohsuke.stapler.QueryParameter")
+public class QueryParameterAnnotationProcessor extends AbstractStaplerProcessor {
+    /**
+     * Reused for every file, since a compilation can easily write thousands of them.
+     */
+    private final StringBuilder buf = new StringBuilder();
+
+    @Override
+    public void process(StaplerRound round) {
+        // only the methods with annotated parameters are visited.
+        // an overloaded method maps to the same file, in which case the last one wins,
+        // as it always did.
+        Map<String,ExecutableElement> files = new LinkedHashMap<String,ExecutableElement>();
+        for (Element e : round.getElementsAnnotatedWith(QueryParameter.class)) {
+            Element m = e.getEnclosingElement();
+            if (e.getKind()!=ElementKind.PARAMETER || m.getKind()!=ElementKind.METHOD)
+                continue;
+            if (!(m.getEnclosingElement() instanceof TypeElement))
+                continue;
+            files.put(getRelativeName((ExecutableElement)m), (ExecutableElement)m);
+        }
+
+        for (Map.Entry<String,ExecutableElement> f : files.entrySet()) {
+            ExecutableElement m = f.getValue();
+            try {
+                write(m, f.getKey());
+            } catch (IOException x) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, x.toString(), m);
+            }
+        }
+    }
+
+    private String getRelativeName(ExecutableElement m) {
+        TypeElement owner = (TypeElement)m.getEnclosingElement();
+        String pkg = getPackageName(owner);
+        String name = owner.getQualifiedName().toString();
+        if (pkg.length()>0)
+            name = name.substring(pkg.length()+1);
+        return name.replace('.','/')+'/'+m.getSimpleName()+".stapler";
+    }
+
+    private String getPackageName(Element e) {
+        return processingEnv.getElementUtils().getPackageOf(e).getQualifiedName().toString();
+    }
+
+    private void write(ExecutableElement m, String relativeName) throws IOException {
+        buf.setLength(0);
+        for (VariableElement p : m.getParameters()) {
+            if (buf.length()>0)  buf.append(',');
+            buf.append(p.getSimpleName());
+        }
+
+        if (ResourceWriter.write(processingEnv.getFiler(), getPackageName(m), relativeName, utf8(buf)))
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Generating "+relativeName);
+    }
+
+    private static byte[] utf8(CharSequence s) {
+        try {
+            return s.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.kohsuke.stapler.processor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import javax.annotation.processing.Filer;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Writes resources to the class output through the {@link Filer}.
+ *
+ * <p>
+ * A resource whose contents haven't changed is left alone, so that incremental builds don't
+ * touch its timestamp and make everything downstream think it needs to be repackaged.
+ */
+final class ResourceWriter {
+    private ResourceWriter() {}
+
+    /**
+     * Writes the resource unless it already has the given contents.
+     *
+     * @return
+     *      true if the resource was written.
+     */
+    static boolean write(Filer filer, String pkg, String relativeName, byte[] contents) throws IOException {
+        byte[] existing = read(filer, pkg, relativeName);
+        if (existing!=null && Arrays.equals(existing, contents))
+            return false;
+
+        FileObject f = filer.createResource(StandardLocation.CLASS_OUTPUT, pkg, relativeName);
+        OutputStream os = f.openOutputStream();
+        try {
+            os.write(contents);
+        } finally {
+            os.close();
+        }
+        return true;
+    }
+
+    /**
+     * Reads a resource from the class output, as left there by the previous compilation.
+     *
+     * @return null if the resource doesn't exist yet.
+     */
+    static byte[] read(Filer filer, String pkg, String relativeName) {
+        try {
+            InputStream in = filer.getResource(StandardLocation.CLASS_OUTPUT, pkg, relativeName).openInputStream();
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len=in.read(buf))>=0)
+                    baos.write(buf,0,len);
+                return baos.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks if the resource is in the class output.
+     */
+    static boolean exists(Filer filer, String pkg, String relativeName) {
+        try {
+            return filer.getResource(StandardLocation.CLASS_OUTPUT, pkg, relativeName).getLastModified()!=0;
+        } catch (IOException e) {
+            return false;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Formats the properties in the {@link java.util.Properties} file format.
+     *
+     * <p>
+     * Unlike {@link java.util.Properties#store(OutputStream, String)}, this doesn't put the current time
+     * in the output, and the keys are written in order, so the same properties always produce the same bytes.
+     */
+    static byte[] toProperties(SortedMap<String,String> properties) {
+        StringBuilder buf = new StringBuilder();
+        for (Map.Entry<String,String> e : properties.entrySet()) {
+            escape(e.getKey(), true, buf);
+            buf.append('=');
+            escape(e.getValue(), false, buf);
+            buf.append('\n');
+        }
+        try {
+            return buf.toString().getBytes("ISO-8859-1");
+        } catch (IOException e) {
+            throw new AssertionError(e); // ISO-8859-1 is always there
+        }
+    }
+
+    private static void escape(String s, boolean key, StringBuilder buf) {
+        for (int i=0; i<s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+            case ' ':
+                if (key || i==0)    buf.append('\\');
+                buf.append(' ');
+                break;
+            case '\t':  buf.append("\\t");  break;
+            case '\n':  buf.append("\\n");  break;
+            case '\r':  buf.append("\\r");  break;
+            case '\f':  buf.append("\\f");  break;
+            case '\\':
+            case '=':
+            case ':':
+            case '#':
+            case '!':
+                buf.append('\\').append(ch);
+                break;
+            default:
+                if (ch<0x20 || ch>0x7E)
+                    buf.append(String.format("\\u%04X",(int)ch));
+                else
+                    buf.append(ch);
+            }
+        }
+    }
+}
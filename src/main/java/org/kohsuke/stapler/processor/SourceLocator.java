@@ -0,0 +1,36 @@
+package org.kohsuke.stapler.processor;
+
+import com.sun.source.util.TreePath;
+import com.sun.source.util.Trees;
+import java.io.File;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.lang.model.element.Element;
+import javax.tools.JavaFileObject;
+
+/**
+ * Finds the source file that an element was compiled from.
+ *
+ * <p>
+ * This uses the javac specific API from <tt>tools.jar</tt>, so it's kept in its own class, and
+ * the constructor fails with {@link LinkageError} when the API is not available, or with
+ * {@link IllegalArgumentException} when the processor doesn't run in javac.
+ */
+final class SourceLocator {
+    private final Trees trees;
+
+    SourceLocator(ProcessingEnvironment env) {
+        trees = Trees.instance(env);
+    }
+
+    /**
+     * @return null if the element didn't come from a source file.
+     */
+    File getSourceFile(Element e) {
+        TreePath path = trees.getPath(e);
+        if (path==null)     return null;
+        JavaFileObject source = path.getCompilationUnit().getSourceFile();
+        if (source==null || !"file".equals(source.toUri().getScheme()))
+            return null;
+        return new File(source.toUri());
+    }
+}
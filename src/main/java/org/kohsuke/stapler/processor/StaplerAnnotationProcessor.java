@@ -0,0 +1,89 @@
+package org.kohsuke.stapler.processor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+
+/**
+ * The annotation processor that runs all the {@link AbstractStaplerProcessor}s:
+ * the built-in ones, for exported beans, data-bound constructors, and query parameters,
+ * and the ones discovered through {@link ServiceLoader}.
+ *
+ * <p>
+ * The elements of each round are walked once, and then handed to all of them.
+ * No annotation is claimed, so that other processors still see them.
+ */
+public class StaplerAnnotationProcessor extends AbstractProcessor {
+    private final List<AbstractStaplerProcessor> handlers = new ArrayList<AbstractStaplerProcessor>();
+
+    public StaplerAnnotationProcessor() {
+        handlers.add(new ExportedBeanAnnotationProcessor());
+        handlers.add(new ConstructorProcessor());
+        handlers.add(new QueryParameterAnnotationProcessor());
+    }
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        try {
+            Iterator<AbstractStaplerProcessor> itr = ServiceLoader.load(AbstractStaplerProcessor.class,
+                    StaplerAnnotationProcessor.class.getClassLoader()).iterator();
+            while (itr.hasNext())
+                handlers.add(itr.next());
+        } catch (ServiceConfigurationError e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Failed to load a Stapler annotation processor: "+e.getMessage());
+        }
+        for (AbstractStaplerProcessor h : handlers)
+            h.init(processingEnv);
+    }
+
+    /**
+     * The handlers only look at declarations and their javadoc, which newer language versions
+     * don't change, so there's no point in having javac warn about them.
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latest();
+    }
+
+    /**
+     * All the annotation types that the handlers are interested in.
+     */
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        Set<String> types = new HashSet<String>();
+        for (AbstractStaplerProcessor h : handlers)
+            types.addAll(h.getSupportedAnnotationTypes());
+        // javac warns about listing anything else along with "*"
+        if (types.contains("*"))
+            return Collections.singleton("*");
+        return types;
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        Set<String> options = new HashSet<String>(super.getSupportedOptions());
+        for (AbstractStaplerProcessor h : handlers)
+            options.addAll(h.getSupportedOptions());
+        return options;
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        StaplerRound round = new StaplerRound(roundEnv);
+        for (AbstractStaplerProcessor h : handlers)
+            h.process(round);
+        return false;
+    }
+}
@@ -0,0 +1,98 @@
+package org.kohsuke.stapler.processor;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementScanner6;
+
+/**
+ * A round of annotation processing, with the elements the {@link AbstractStaplerProcessor}s are interested in.
+ *
+ * <p>
+ * Every element of the round is visited once to build this, instead of once per handler.
+ */
+public final class StaplerRound {
+    private final RoundEnvironment roundEnv;
+    private final List<TypeElement> rootTypes = new ArrayList<TypeElement>();
+    private final List<TypeElement> types = new ArrayList<TypeElement>();
+
+    /**
+     * Annotated elements, keyed by the name of the annotation type.
+     */
+    private final Map<String,List<Element>> annotated = new HashMap<String,List<Element>>();
+
+    StaplerRound(RoundEnvironment roundEnv) {
+        this.roundEnv = roundEnv;
+        if (roundEnv.processingOver())
+            return;
+
+        ElementScanner6<Void,Void> scanner = new ElementScanner6<Void,Void>() {
+            @Override
+            public Void scan(Element e, Void p) {
+                if (e instanceof TypeElement)
+                    types.add((TypeElement)e);
+                for (AnnotationMirror a : e.getAnnotationMirrors()) {
+                    String name = ((TypeElement)a.getAnnotationType().asElement()).getQualifiedName().toString();
+                    List<Element> elements = annotated.get(name);
+                    if (elements==null)
+                        annotated.put(name, elements=new ArrayList<Element>());
+                    elements.add(e);
+                }
+                return super.scan(e, p);
+            }
+
+            /**
+             * Elements that {@link ElementScanner6} doesn't know about, such as the modules and the
+             * record components of the later language versions, have nothing in them for the handlers.
+             * The default would throw {@link javax.lang.model.element.UnknownElementException}.
+             */
+            @Override
+            public Void visitUnknown(Element e, Void p) {
+                return null;
+            }
+        };
+        for (Element e : roundEnv.getRootElements()) {
+            if (e instanceof TypeElement)
+                rootTypes.add((TypeElement)e);
+            scanner.scan(e);
+        }
+    }
+
+    public RoundEnvironment getRoundEnvironment() {
+        return roundEnv;
+    }
+
+    public boolean isProcessingOver() {
+        return roundEnv.processingOver();
+    }
+
+    /**
+     * Top-level types compiled in this round.
+     */
+    public List<TypeElement> getRootTypes() {
+        return rootTypes;
+    }
+
+    /**
+     * All the types compiled in this round, including the nested ones.
+     */
+    public List<TypeElement> getTypes() {
+        return types;
+    }
+
+    /**
+     * Elements of this round that have the given annotation. Unlike
+     * {@link RoundEnvironment#getElementsAnnotatedWith(Class)}, this doesn't walk the elements again.
+     */
+    public List<Element> getElementsAnnotatedWith(Class<? extends Annotation> a) {
+        List<Element> elements = annotated.get(a.getName());
+        return elements==null ? Collections.<Element>emptyList() : elements;
+    }
+}
@@ -0,0 +1,147 @@
+package org.kohsuke.stapler;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ExpressionScannerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final List<String> found = new ArrayList<String>();
+
+    private final ExpressionScanner scanner = new ExpressionScanner() {
+        protected void onProperty(String name) {
+            found.add(name);
+        }
+    };
+
+    @Test
+    public void properties() {
+        scan("Hello ${%greeting} and ${%bye(it.name)}, ${a}");
+        assertFound("greeting", "bye");
+    }
+
+    @Test
+    public void literals() {
+        scan("${h.foo('%single', \"%double\", 'plain')} ${h.bar('%withArgs(1)')}");
+        assertFound("single", "double", "withArgs");
+    }
+
+    @Test
+    public void noLiteralsInArguments() {
+        scan("${%outer('%inner')}");
+        assertFound("outer");
+    }
+
+    @Test
+    public void nestedBraces() {
+        scan("${h.foo({a:{b:1}}, '%deep')} ${%after}");
+        assertFound("deep", "after");
+    }
+
+    @Test
+    public void bracesAndQuotesInStrings() {
+        scan("${h.foo('}', \"'\", '{')} ${%after}");
+        assertFound("after");
+    }
+
+    @Test
+    public void escapes() {
+        scan("${h.foo('it\\'s }', \"\\\"}\", '\\\\')} ${%after}");
+        assertFound("after");
+    }
+
+    @Test
+    public void dollars() {
+        scan("$$${%a} $ {%b} $");
+        assertFound("a");
+    }
+
+    @Test
+    public void splitAcrossChunks() {
+        // as the SAX parser may hand them over, in arbitrary places of a larger buffer
+        char[] buf = "xx${%gre|eting} ${h.foo(|'%lit|eral')} $|{%x}|yy".toCharArray();
+        int start = 0;
+        for (int i=0; i<=buf.length; i++) {
+            if (i==buf.length || buf[i]=='|') {
+                scanner.scan(buf, start, i-start);
+                start = i+1;
+            }
+        }
+        assertTrue(scanner.end());
+        assertEquals(Arrays.asList("greeting", "literal", "x"), found);
+    }
+
+    @Test
+    public void everyCharacterItsOwnChunk() {
+        char[] buf = "${%a} ${h.foo({'}'}, '%b')} ${%c(1)}".toCharArray();
+        for (int i=0; i<buf.length; i++)
+            scanner.scan(buf, i, 1);
+        assertTrue(scanner.end());
+        assertEquals(Arrays.asList("a", "b", "c"), found);
+    }
+
+    @Test
+    public void incomplete() {
+        scanner.scan("${%never");
+        assertFalse(scanner.end());
+        assertTrue(found.isEmpty());
+
+        scanner.scan("${h.foo('}'");
+        assertFalse(scanner.end());
+
+        // the next text starts afresh
+        scan("}${%next}");
+        assertFound("next");
+    }
+
+    @Test
+    public void missingBrace() throws Exception {
+        File f = tmp.newFile("foo.jelly");
+        write(f, "<j:jelly xmlns:j='jelly:core'><p title='${%ok}'>${%unterminated</p></j:jelly>");
+        try {
+            new LocalizerMojo().findAllProperties(f);
+            fail();
+        } catch (MojoExecutionException e) {
+            assertEquals("Missing '}'", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void jelly() throws Exception {
+        File f = tmp.newFile("foo.jelly");
+        write(f, "<j:jelly xmlns:j='jelly:core'><p title='${%title}'>${%first}<![CDATA[ ${%second} ]]>${h.x('%third')}</p></j:jelly>");
+        assertEquals(Arrays.asList("title", "first", "second", "third"),
+                new ArrayList<String>(new LocalizerMojo().findAllProperties(f)));
+    }
+
+    private void scan(String s) {
+        scanner.scan(s);
+        assertTrue(scanner.end());
+    }
+
+    private void assertFound(String... names) {
+        assertEquals(Arrays.asList(names), found);
+    }
+
+    private static void write(File f, String s) throws IOException {
+        OutputStream o = new FileOutputStream(f);
+        try {
+            o.write(s.getBytes("UTF-8"));
+        } finally {
+            o.close();
+        }
+    }
+}